@@ -16,12 +16,75 @@
 package kc_phd_cambridge.cellproliferation;
 
 /**
+ * A node of a binary tree with links to its parent and two children.
+ *
+ * Subclasses add the data held at each node, e.g. LineageTree.Node, and the
+ * self-referencing type parameter lets the links be followed without casts.
  *
  * @author Kyata Chibalabala
- * @param <Node>
+ * @param <Node> the concrete node type.
  */
 public class BinaryTreeNode <Node extends BinaryTreeNode<Node>>
 {
   Node right_node, left_node, parent_node;
   
-}
+  /**
+   * Adds a child under this node, in the left position if it is free and the right position otherwise.
+   *
+   * @param child the node to add, whose parent becomes this node.
+   * @throws IllegalStateException if this node already has two children.
+   */
+  @SuppressWarnings("unchecked")
+  public void addChild(Node child)
+  {
+    if(left_node == null)
+      left_node = child;
+    else if(right_node == null)
+      right_node = child;
+    else
+      throw new IllegalStateException("A binary tree node can not have more than two children");
+    child.parent_node = (Node)this;
+  }// addChild
+  
+  //*** Access methods ***//
+  
+  /**
+   * Provides read access to the left child of this node
+   *
+   * @return the left child, or null if there is none.
+   */
+  public Node getLeftNode()
+  {
+    return this.left_node;
+  }// getLeftNode
+  
+  /**
+   * Provides read access to the right child of this node
+   *
+   * @return the right child, or null if there is none.
+   */
+  public Node getRightNode()
+  {
+    return this.right_node;
+  }// getRightNode
+  
+  /**
+   * Provides read access to the parent of this node
+   *
+   * @return the parent, or null for the root of a tree.
+   */
+  public Node getParentNode()
+  {
+    return this.parent_node;
+  }// getParentNode
+  
+  /**
+   * Tests whether this node has no children
+   *
+   * @return true if this node is a leaf.
+   */
+  public boolean isLeaf()
+  {
+    return left_node == null && right_node == null;
+  }// isLeaf
+}// BinaryTreeNode
@@ -15,8 +15,6 @@
  */
 package kc_phd_cambridge.cellproliferation;
 
-import java.util.List;
-
 /**
  * Representation of a Cell object.
  * 
@@ -28,22 +26,23 @@ import java.util.List;
 public class Cell 
 {
   // Instance variables
-	private final int cell_id, cell_lineage_id; // A unique identifier for each cell, and an identifier for the cell's lineage
+	private final long cell_id; // A unique identifier for each cell
+	private final int cell_lineage_id; // An identifier for the cell's lineage
 	private int cell_gen; // Track the generation the cell belongs to
 	private double last_div; // The last time this cell completed M-phase. Initially set to the timepoint it was created
 	private boolean can_divide; // Indicates the state of the cell, true if cell is at G2 and can divide
-  private double[][][] genome;
+  private int genome_state; // The handle of this cell's genome state in its simulation's GenomeStateTable
   private double fraction_genome_labelled;
 	
   // Constructor
-	public Cell(int new_id, int new_lineage_id, int new_gen, double provided_last_div, boolean division_status, double[][][] provided_genome)
+	public Cell(long new_id, int new_lineage_id, int new_gen, double provided_last_div, boolean division_status, int provided_genome_state)
 	{
 		this.cell_id = new_id;
     this.cell_lineage_id = new_lineage_id;
 		this.cell_gen = new_gen;
 		this.last_div = provided_last_div;
 		this.can_divide = division_status;
-    this.genome = provided_genome;
+    this.genome_state = provided_genome_state;
     this.fraction_genome_labelled = 0;
 	}// Constructor
 	
@@ -58,7 +57,7 @@ public class Cell
 		cell_gen = source.cell_gen;
 		last_div = source.last_div;
 		can_divide = source.can_divide;
-    genome = source.genome;
+    genome_state = source.genome_state;
     fraction_genome_labelled = source.fraction_genome_labelled;
   }
   
@@ -91,7 +90,7 @@ public class Cell
    *
    * @return the cellId of this cell object
    */
-  public int getCellId()
+  public long getCellId()
   {
     return this.cell_id;
   }// getId
@@ -127,24 +126,25 @@ public class Cell
 	}// setGen
     
   /**
-   * Provides read access for the diploid genome of this cell
+   * Provides read access for the genome state of this cell
    *
-   * @return  the genome of this cell
+   * @return  the handle of the genome state of this cell
+   * @see kc_phd_cambridge.cellproliferation.GenomeStateTable
    */
-  public double[][][] getGenome()
+  public int getGenomeState()
   {
-      return this.genome;
-  }// getGenome
+      return this.genome_state;
+  }// getGenomeState
     
   /**
-   * Allows the diploid genome of this cell to be changed
+   * Allows the genome state of this cell to be changed
    *
-   * @param new_genome the new genome object that this cell will now carry
+   * @param new_genome_state the handle of the genome state that this cell will now carry
    */
-  public void setGenome(double[][][] new_genome)
+  public void setGenomeState(int new_genome_state)
   {
-    this.genome = new_genome;
-  }// setGenome
+    this.genome_state = new_genome_state;
+  }// setGenomeState
   
   /**
    * Allows the label status of this cell's genome to be changed.
@@ -168,19 +168,10 @@ public class Cell
   }// getFractionGenomeLabelled()
   
 
-  public void printGenomeStatus()
+  public void printGenomeStatus(GenomeStateTable genome_states)
   {
     System.out.println(this.toString());
-    for (double[][] genome1 : this.genome) {
-      // foreach homologous pair of the genome
-      for (double[] genome11 : genome1) {
-        // for each chromosome in each homologous pair
-        for (int dna_strand_count = 0; dna_strand_count < genome11.length; dna_strand_count++) {
-          // for each DNA strand in the chromosome
-          System.out.println(Double.toString(genome11[dna_strand_count]));
-        } // for each DNA strand in the chromosome
-      }
-    }
+    System.out.print(genome_states.getGenome(this.genome_state).toString());
   }
 	/**
    * Returns a string of key information about this cell.
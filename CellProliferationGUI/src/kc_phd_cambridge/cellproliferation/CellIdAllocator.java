@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out unique 64-bit cell IDs in blocks.
+ *
+ * Each worker dividing cells holds an IdBlock and takes IDs from it without
+ * any synchronisation. When its block runs out the worker claims the next free
+ * block from the shared allocator with a single atomic add, so workers never
+ * wait on each other and no two cells receive the same ID.
+ *
+ * IDs are not guaranteed to be dense: the unused end of a worker's last block
+ * is never handed out. When one worker takes all IDs, or every worker claims
+ * its blocks in a fixed order, the IDs a simulation hands out depend only on
+ * the order of its divisions and so are reproducible for a given seed.
+ *
+ * @author Kyata Chibalabala
+ */
+public class CellIdAllocator
+{
+  // Class variables
+  public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+  // Instance variables
+  private final AtomicLong next_free_id;
+  private final int block_size;
+
+  /**
+   * A block of consecutive IDs owned by a single worker.
+   */
+  public final class IdBlock
+  {
+    private long next_id, end_of_block; // IDs next_id up to, but not including, end_of_block are still free
+
+    private IdBlock()
+    {
+      this.next_id = 0;
+      this.end_of_block = 0;
+    }
+
+    /**
+     * Returns the next ID of this block, claiming a new block from the allocator when it is used up.
+     *
+     * @return a cell ID that has not been handed out before.
+     */
+    public long nextId()
+    {
+      if(next_id == end_of_block)
+      {// Block used up
+        next_id = claimBlock();
+        end_of_block = next_id + block_size;
+      }
+      return next_id++;
+    }// nextId
+  }// IdBlock
+
+  /**
+   * Constructor, the first ID handed out is 0.
+   *
+   * @param new_block_size the number of IDs claimed by a worker at a time.
+   */
+  public CellIdAllocator(int new_block_size)
+  {
+    this(new_block_size, 0);
+  }// Constructor
+
+  /**
+   * Constructor, for IDs from a range of their own, e.g. those of one lineage
+   * simulated separately.
+   *
+   * @param new_block_size the number of IDs claimed by a worker at a time.
+   * @param first_id the first ID handed out.
+   */
+  public CellIdAllocator(int new_block_size, long first_id)
+  {
+    this.next_free_id = new AtomicLong(first_id);
+    this.block_size = new_block_size;
+  }// Constructor
+
+  /**
+   * Creates an empty block for a worker, IDs are claimed on its first use.
+   *
+   * @return a new IdBlock drawing from this allocator.
+   */
+  public IdBlock newIdBlock()
+  {
+    return new IdBlock();
+  }// newIdBlock
+
+  /**
+   * Claims the next free block of IDs.
+   *
+   * @return the first ID of the claimed block.
+   */
+  public long claimBlock()
+  {
+    return next_free_id.getAndAdd(block_size);
+  }// claimBlock
+
+  /**
+   * Claims a range of consecutive IDs of any length, e.g. for IDs that are
+   * assigned by position after the number of divisions is known.
+   *
+   * @param number_of_ids the number of IDs needed.
+   * @return the first ID of the claimed range.
+   */
+  public long claimRange(long number_of_ids)
+  {
+    return next_free_id.getAndAdd(number_of_ids);
+  }// claimRange
+
+  //*** Access methods ***//
+
+  /**
+   * Provides read access to the number of IDs claimed in blocks at a time
+   *
+   * @return the block size.
+   */
+  public int getBlockSize()
+  {
+    return this.block_size;
+  }// getBlockSize
+
+  /**
+   * Provides read access to the lowest ID not yet claimed
+   *
+   * @return the next free ID.
+   */
+  public long getNextFreeId()
+  {
+    return next_free_id.get();
+  }// getNextFreeId
+}// CellIdAllocator
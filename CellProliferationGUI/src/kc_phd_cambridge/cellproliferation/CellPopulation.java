@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+/**
+ * Storage for a growing cell population.
+ *
+ * Cells are addressed by their index in the population. A division updates the
+ * mother cell in place, making it daughter cell one, and appends daughter cell
+ * two to the end, so implementations only need amortised O(1) append and
+ * in-place update of the per-cell fields. A cell's genome is recorded as the
+ * handle of its genome state in the simulation's GenomeStateTable.
+ *
+ * Cells at different indices may be updated by different threads at the same
+ * time, provided the population is not grown meanwhile, unless an
+ * implementation states otherwise.
+ *
+ * Implementations differ in where the cell records live; a simulation selects
+ * one through SimulationData.setPopulationStorage and closes it when the run
+ * is over.
+ *
+ * @see kc_phd_cambridge.cellproliferation.HeapCellPopulation
+ * @see kc_phd_cambridge.cellproliferation.OffHeapCellPopulation
+ * @see kc_phd_cambridge.cellproliferation.SpillingCellPopulation
+ * @see kc_phd_cambridge.cellproliferation.GenomeStateTable
+ * @author Kyata Chibalabala
+ */
+public interface CellPopulation extends AutoCloseable
+{
+  /**
+   * Adds a cell with an unlabelled genome to the end of the population.
+   *
+   * @param new_id the unique ID of the new cell.
+   * @param new_lineage_id the lineage of the new cell.
+   * @param new_generation the generation of the new cell.
+   * @return the index of the new cell in the population.
+   */
+  int append(long new_id, int new_lineage_id, int new_generation);
+
+  /**
+   * Adds a run of cells to the end of the population in one step, so that
+   * workers can then fill in the new cells at known indices concurrently. The
+   * fields of the new cells must be set before they are read.
+   *
+   * @param number_of_cells the number of cells to add.
+   * @return the index of the first new cell.
+   */
+  int appendCells(int number_of_cells);
+
+  /**
+   * Provides read access to the number of cells in the population
+   *
+   * @return the number of cells stored.
+   */
+  int size();
+
+  /**
+   * Provides read access to the haploid number of the stored genomes
+   *
+   * @return the haploid number.
+   */
+  int getHaploidNumber();
+
+  /**
+   * Provides read access for the unique ID of a cell
+   *
+   * @param index the index of the cell in the population.
+   * @return the cell ID.
+   */
+  long getCellId(int index);
+
+  /**
+   * Allows the unique ID of a cell to be changed
+   *
+   * @param index the index of the cell in the population.
+   * @param new_id the cell ID.
+   */
+  void setCellId(int index, long new_id);
+
+  /**
+   * Provides read access for the lineage ID of a cell
+   *
+   * @param index the index of the cell in the population.
+   * @return the lineage ID.
+   */
+  int getLineageId(int index);
+
+  /**
+   * Allows the lineage ID of a cell to be changed
+   *
+   * @param index the index of the cell in the population.
+   * @param new_lineage_id the lineage ID.
+   */
+  void setLineageId(int index, int new_lineage_id);
+
+  /**
+   * Provides read access for the generation number of a cell
+   *
+   * @param index the index of the cell in the population.
+   * @return the generation the cell belongs to.
+   */
+  int getGeneration(int index);
+
+  /**
+   * Allows the generation number of a cell to be changed
+   *
+   * @param index the index of the cell in the population.
+   * @param new_generation the generation the cell now belongs to.
+   */
+  void setGeneration(int index, int new_generation);
+
+  /**
+   * Provides read access to the genome state of a cell
+   *
+   * @param index the index of the cell in the population.
+   * @return the handle of the cell's genome state.
+   */
+  int getGenomeState(int index);
+
+  /**
+   * Allows the genome state of a cell to be changed
+   *
+   * @param index the index of the cell in the population.
+   * @param new_genome_state the handle of the cell's new genome state.
+   */
+  void setGenomeState(int index, int new_genome_state);
+
+  /**
+   * Releases the storage held by the population, which must not be used afterwards.
+   */
+  @Override
+  default void close()
+  {
+  }// close
+}// CellPopulation
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Cell population whose records are kept in fixed size chunks of ByteBuffers.
+ *
+ * Each chunk holds the records of CELLS_PER_CHUNK consecutive cells, laid out as
+ *
+ *  cell ID (long), lineage ID (int), generation (int), genome state (int)
+ *
+ * followed by four unused bytes that keep every cell ID 8-byte aligned.
+ *
+ * Subclasses decide where a chunk lives by supplying it on request, so the same
+ * record layout serves populations in native memory and populations paged to
+ * disk. The labelled fraction of a cell is held with its genome state in the
+ * simulation's GenomeStateTable rather than in the record.
+ *
+ * @see kc_phd_cambridge.cellproliferation.CellPopulation
+ * @author Kyata Chibalabala
+ */
+public abstract class ChunkedCellPopulation implements CellPopulation
+{
+  // Class variables
+  protected static final int CHUNK_SHIFT = 20, CELLS_PER_CHUNK = 1 << CHUNK_SHIFT; // 24MB chunks
+  protected static final int RECORD_SIZE = 24, CHUNK_SIZE = CELLS_PER_CHUNK * RECORD_SIZE;
+  private static final int CELL_ID = 0, LINEAGE_ID = 8, GENERATION = 12, GENOME_STATE = 16; // Field offsets within a record
+  private static final BufferCleaner BUFFER_CLEANER = findBufferCleaner(); // Null if direct buffers can not be freed explicitly
+
+  // Instance variables
+  private final int haploid_number;
+  protected int size; // The number of cells currently stored
+
+  /**
+   * Constructor.
+   *
+   * @param new_haploid_number the haploid number of the organism whose cells are stored.
+   */
+  protected ChunkedCellPopulation(int new_haploid_number)
+  {
+    this.haploid_number = new_haploid_number;
+    this.size = 0;
+  }// Constructor
+
+  /**
+   * Provides the buffer holding a chunk of cell records, creating the chunk
+   * when it is the first chunk beyond the end of the population.
+   *
+   * @param chunk_index the index of the chunk, cell index / CELLS_PER_CHUNK.
+   * @return the chunk, with records starting at position 0.
+   */
+  protected abstract ByteBuffer chunk(int chunk_index);
+
+  @Override
+  public int append(long new_id, int new_lineage_id, int new_generation)
+  {
+    int index = size;
+    ByteBuffer records = chunk(index >>> CHUNK_SHIFT);
+    int record = recordPosition(index);
+    records.putLong(record + CELL_ID, new_id);
+    records.putInt(record + LINEAGE_ID, new_lineage_id);
+    records.putInt(record + GENERATION, new_generation);
+    records.putInt(record + GENOME_STATE, GenomeStateTable.UNLABELLED_GENOME);
+    size++;
+    return index;
+  }// append
+
+  @Override
+  public int appendCells(int number_of_cells)
+  {
+    int first_index = size;
+    if(number_of_cells == 0)
+      return first_index;
+    for(int chunk_index = first_index >>> CHUNK_SHIFT; chunk_index <= (first_index + number_of_cells - 1) >>> CHUNK_SHIFT; chunk_index++)
+    {// Create every chunk the new cells fall in before they are filled in
+      chunk(chunk_index);
+    }
+    size += number_of_cells;
+    return first_index;
+  }// appendCells
+
+  private static int recordPosition(int index)
+  {
+    return (index & (CELLS_PER_CHUNK - 1)) * RECORD_SIZE;
+  }// recordPosition
+
+  //*** Access methods ***//
+
+  @Override
+  public int size()
+  {
+    return this.size;
+  }// size
+
+  @Override
+  public int getHaploidNumber()
+  {
+    return this.haploid_number;
+  }// getHaploidNumber
+
+  @Override
+  public long getCellId(int index)
+  {
+    return chunk(index >>> CHUNK_SHIFT).getLong(recordPosition(index) + CELL_ID);
+  }// getCellId
+
+  @Override
+  public void setCellId(int index, long new_id)
+  {
+    chunk(index >>> CHUNK_SHIFT).putLong(recordPosition(index) + CELL_ID, new_id);
+  }// setCellId
+
+  @Override
+  public int getLineageId(int index)
+  {
+    return chunk(index >>> CHUNK_SHIFT).getInt(recordPosition(index) + LINEAGE_ID);
+  }// getLineageId
+
+  @Override
+  public void setLineageId(int index, int new_lineage_id)
+  {
+    chunk(index >>> CHUNK_SHIFT).putInt(recordPosition(index) + LINEAGE_ID, new_lineage_id);
+  }// setLineageId
+
+  @Override
+  public int getGeneration(int index)
+  {
+    return chunk(index >>> CHUNK_SHIFT).getInt(recordPosition(index) + GENERATION);
+  }// getGeneration
+
+  @Override
+  public void setGeneration(int index, int new_generation)
+  {
+    chunk(index >>> CHUNK_SHIFT).putInt(recordPosition(index) + GENERATION, new_generation);
+  }// setGeneration
+
+  @Override
+  public int getGenomeState(int index)
+  {
+    return chunk(index >>> CHUNK_SHIFT).getInt(recordPosition(index) + GENOME_STATE);
+  }// getGenomeState
+
+  @Override
+  public void setGenomeState(int index, int new_genome_state)
+  {
+    chunk(index >>> CHUNK_SHIFT).putInt(recordPosition(index) + GENOME_STATE, new_genome_state);
+  }// setGenomeState
+
+  /**
+   * Frees the native memory of a direct buffer, or unmaps a mapped one, without
+   * waiting for it to be collected. The buffer must not be used afterwards.
+   *
+   * @param buffer the buffer to free.
+   * @return true if the buffer was freed, false if it is left to the garbage collector.
+   */
+  protected static boolean freeBuffer(ByteBuffer buffer)
+  {
+    if(BUFFER_CLEANER == null)
+      return false;
+    try
+    {
+      BUFFER_CLEANER.clean(buffer);
+      return true;
+    }
+    catch(ReflectiveOperationException | RuntimeException e)
+    {// Leave the buffer to the garbage collector
+      return false;
+    }
+  }// freeBuffer
+
+  /**
+   * Frees the native memory of a direct buffer, or unmaps a mapped one.
+   */
+  private interface BufferCleaner
+  {
+    void clean(ByteBuffer buffer) throws ReflectiveOperationException;
+  }// BufferCleaner
+
+  /**
+   * Finds the JDK's internal way of freeing a direct buffer: Unsafe.invokeCleaner
+   * from Java 9 on, the buffer's own Cleaner on Java 8.
+   *
+   * @return the cleaner, or null if neither is accessible.
+   */
+  private static BufferCleaner findBufferCleaner()
+  {
+    try
+    {// Java 9 and later
+      Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+      Field unsafe_field = unsafe_class.getDeclaredField("theUnsafe");
+      unsafe_field.setAccessible(true);
+      final Object unsafe = unsafe_field.get(null);
+      final Method invoke_cleaner = unsafe_class.getMethod("invokeCleaner", ByteBuffer.class);
+      return (ByteBuffer buffer) -> invoke_cleaner.invoke(unsafe, buffer);
+    }
+    catch(ReflectiveOperationException | RuntimeException e)
+    {// Not available before Java 9
+    }
+    try
+    {// Java 8
+      final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return (ByteBuffer buffer) -> 
+      {
+        Object buffer_cleaner = cleaner.invoke(buffer);
+        if(buffer_cleaner != null)
+          clean.invoke(buffer_cleaner);
+      };
+    }
+    catch(ReflectiveOperationException | RuntimeException e)
+    {
+      return null;
+    }
+  }// findBufferCleaner
+}// ChunkedCellPopulation
@@ -40,8 +40,7 @@ public class DataAnalysis
   private final List<String> genome_data;
   private final int  haploid_number;
   private long total_number_of_bases_in_genome;
-  private double fraction_of_genome_labelled;
-  private int total_labelled_bases_in_genome, total_number_of_lineages;
+  private int total_number_of_lineages;
   private final int[] highest_generations;// An array of the highest generation reached from each cell lineage
   
   /**
@@ -85,12 +84,18 @@ public class DataAnalysis
     // Initiate an array to store the percentage labelled in each generation for each lineage
     // First dimension = cell lineages; second dimension = generations arising from that lineage
     StringBuilder[][] generation_percentages = new StringBuilder[total_number_of_lineages][];
+    // The weight of each percentage, only for generations with a weighted record 
+    // (a record standing for several cells or carrying an importance weight)
+    StringBuilder[][] generation_weights = new StringBuilder[total_number_of_lineages][];
+    int[][] records_in_generation = new int[total_number_of_lineages][];
     
     // Populate the second dimension of the array, jagged array if need be
     for(int lineage_count = 0; lineage_count < total_number_of_lineages; lineage_count++)
     {// For each lineage
       int generations_in_this_lineage = highest_generations[lineage_count];
       generation_percentages[lineage_count] = new StringBuilder[generations_in_this_lineage+1];
+      generation_weights[lineage_count] = new StringBuilder[generations_in_this_lineage+1];
+      records_in_generation[lineage_count] = new int[generations_in_this_lineage+1];
     }// for each lingeage
     
     
@@ -113,9 +118,10 @@ public class DataAnalysis
       while((s = buffered_reader.readLine()) != null) 
       { 
         String[] split_line = s.split(tab + tab);
-        int cell_id, cell_generation, cell_lineage; 
+        long cell_id;
+        int cell_generation, cell_lineage; 
         double percentage_labelled;
-        cell_id = Integer.parseInt(split_line[0]);
+        cell_id = Long.parseLong(split_line[0]);
         cell_generation = Integer.parseInt(split_line[1]);
         cell_lineage = Integer.parseInt(split_line[2]);
         percentage_labelled = Double.parseDouble(split_line[3]);
@@ -128,6 +134,18 @@ public class DataAnalysis
         {
           generation_percentages[cell_lineage][cell_generation].append(to_add) ;
         }
+        
+        if(split_line.length > 4 && generation_weights[cell_lineage][cell_generation] == null)
+        {// First weighted record of this generation, earlier records each stood for one cell
+          generation_weights[cell_lineage][cell_generation] = new StringBuilder();
+          for(int record = 0; record < records_in_generation[cell_lineage][cell_generation]; record++)
+          {
+            generation_weights[cell_lineage][cell_generation].append("1.0,");
+          }
+        }
+        if(generation_weights[cell_lineage][cell_generation] != null)
+          generation_weights[cell_lineage][cell_generation].append(split_line.length > 4 ? split_line[4] : "1.0").append(",");
+        records_in_generation[cell_lineage][cell_generation]++;
         System.out.println(cell_lineage +" " + cell_generation);
       } 
       file_reader.close();
@@ -148,6 +166,7 @@ public class DataAnalysis
       individual_distributions.add("LINEAGE," + lineage);
       
       generation_percentages[lineage][0] = new StringBuilder("0.0");//Set all generation 0 values to 0
+      generation_weights[lineage][0] = null;
       for(int generation = 0; generation < generation_percentages[lineage].length; generation++)
       {// for each generation in the current lineage
         //final_generation_to_output.add();
@@ -155,6 +174,22 @@ public class DataAnalysis
         String[] split_line = this_line.split(",");
         System.out.println("Line " + this_line + " Elements = " + split_line.length);
         individual_distributions.add("Generation," + generation);
+        if(generation_weights[lineage][generation] != null)
+        {// Weighted records, the mean is weighted and the weights listed under the percentages
+          String[] split_weights = generation_weights[lineage][generation].toString().split(",");
+          double percentage_label_accumalator = 0, weight_accumalator = 0;
+          for(int element = 0; element < split_line.length; element++)
+          {// for each element in the split line
+            double weight = Double.parseDouble(split_weights[element]);
+            percentage_label_accumalator += weight * Double.parseDouble(split_line[element]);
+            weight_accumalator += weight;
+          }// for each element in the split line
+          String number_of_cells = weight_accumalator == Math.rint(weight_accumalator) && weight_accumalator < 1e15 ? Long.toString((long)weight_accumalator) : Double.toString(weight_accumalator);
+          individual_distributions.add("# of Cells," + number_of_cells + "," + this_line);
+          individual_distributions.add("Weights," + generation_weights[lineage][generation].toString());
+          final_generation_to_output.add("GENERATION," + generation + "," + Double.toString(percentage_label_accumalator/weight_accumalator));
+          continue;
+        }
         individual_distributions.add("# of Cells," + split_line.length + "," + this_line);
         double percentage_label_accumalator = 0;
         for(String percentage:split_line)
@@ -174,46 +209,7 @@ public class DataAnalysis
     */
   } 
   
-  private void getCellLabelDistribution(Cell new_cell)
-  {
-    double[][] chromosome_labelled_bases = new double[haploid_number][2];
-    double[][][] genome = new_cell.getGenome();
-    total_labelled_bases_in_genome = 0;
-    //System.out.println("Cell " + new_cell.getId() + ": Generation " + new_cell.getGeneration());
-    for(int chromosome_count = 0; chromosome_count < genome.length; chromosome_count++)
-    {// For each homologous pair
-      double chromo_labelled_bases = 0;
-      for(int homologous_pair_count= 0; homologous_pair_count < genome[chromosome_count].length; homologous_pair_count++)
-      {// For each chromosome in a homologous pair
-        int chromosome_size;
-        
-        String[] split_chromosome_sizes = genome_data.get(chromosome_count).split(",");
-        if(homologous_pair_count==0)
-        {//Homologous chromosome one
-          chromosome_size = Integer.parseInt(split_chromosome_sizes[0]);
-        }else
-        {//Homologous chromosome two
-          chromosome_size = Integer.parseInt(split_chromosome_sizes[1]);
-        }
-        for(int dna_strand_count = 0; dna_strand_count < genome[chromosome_count][homologous_pair_count].length; dna_strand_count++)
-        {// For each DNA strand in the chromosome 
-          
-          //System.out.println(genome[chromosome_count][homologous_pair_count][dna_strand_count]);
-                  
-          double bases_labelled_on_strand = genome[chromosome_count][homologous_pair_count][dna_strand_count];
-          //System.out.println("Strand bases labelled " + bases_labelled_on_strand);
-          total_labelled_bases_in_genome += bases_labelled_on_strand*(double)chromosome_size; 
-          
-          chromo_labelled_bases =(bases_labelled_on_strand*(double)chromosome_size);          
-        }// For each DNA strand
-        chromosome_labelled_bases[chromosome_count][homologous_pair_count] = chromo_labelled_bases;
-      }// For each chromosome in a homologous pair
-    }// For each homologous pair
-    fraction_of_genome_labelled = (total_labelled_bases_in_genome/(double)total_number_of_bases_in_genome);
-    new_cell.setFractionGenomeLabelled(fraction_of_genome_labelled);
-  }// getCellLabelDistribution
-  
-  private void writeToFile(List<String> file_contents, String file_name)
+  static void writeToFile(List<String> file_contents, String file_name)
   {
     try
     {
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.Arrays;
+
+/**
+ * A priority queue of pending cell divisions, ordered by division time.
+ *
+ * The queue is a binary min-heap held in two parallel primitive arrays, the
+ * division times and the population indices of the dividing cells, so adding
+ * and removing an event is O(log n) and allocates nothing once the arrays have
+ * grown. Events due at the same time come off in order of cell index, which
+ * keeps the order of divisions reproducible.
+ *
+ * @see kc_phd_cambridge.cellproliferation.EventDrivenEngine
+ * @author Kyata Chibalabala
+ */
+public class DivisionEventQueue
+{
+  // Instance variables
+  private static final int INITIAL_CAPACITY = 16;
+  private int size; // The number of pending events
+  private double[] division_times;
+  private int[] cell_indices;
+
+  /**
+   * Constructor.
+   *
+   * @param initial_capacity the number of events that can be queued before the arrays need to grow.
+   */
+  public DivisionEventQueue(int initial_capacity)
+  {
+    int capacity = Math.max(initial_capacity, INITIAL_CAPACITY);
+    this.size = 0;
+    this.division_times = new double[capacity];
+    this.cell_indices = new int[capacity];
+  }// Constructor
+
+  /**
+   * Adds the next division of a cell to the queue.
+   *
+   * @param division_time the time the cell divides.
+   * @param cell_index the index of the cell in the population.
+   */
+  public void add(double division_time, int cell_index)
+  {
+    if(size == division_times.length)
+    {
+      division_times = Arrays.copyOf(division_times, 2 * size);
+      cell_indices = Arrays.copyOf(cell_indices, 2 * size);
+    }
+    int position = size++;
+    while(position > 0)
+    {// sift the new event up past every later parent
+      int parent = (position - 1) >>> 1;
+      if(!isEarlier(division_time, cell_index, division_times[parent], cell_indices[parent]))
+        break;
+      division_times[position] = division_times[parent];
+      cell_indices[position] = cell_indices[parent];
+      position = parent;
+    }
+    division_times[position] = division_time;
+    cell_indices[position] = cell_index;
+  }// add
+
+  /**
+   * Removes the earliest division from the queue.
+   *
+   * @return the index of the dividing cell in the population.
+   */
+  public int removeFirst()
+  {
+    int first_cell = cell_indices[0];
+    size--;
+    double last_time = division_times[size];
+    int last_cell = cell_indices[size];
+    int position = 0;
+    while(true)
+    {// sift the last event down from the root past every earlier child
+      int child = 2 * position + 1;
+      if(child >= size)
+        break;
+      if(child + 1 < size && isEarlier(division_times[child + 1], cell_indices[child + 1], division_times[child], cell_indices[child]))
+        child++;
+      if(!isEarlier(division_times[child], cell_indices[child], last_time, last_cell))
+        break;
+      division_times[position] = division_times[child];
+      cell_indices[position] = cell_indices[child];
+      position = child;
+    }
+    division_times[position] = last_time;
+    cell_indices[position] = last_cell;
+    return first_cell;
+  }// removeFirst
+
+  private static boolean isEarlier(double time, int cell, double other_time, int other_cell)
+  {
+    return time < other_time || (time == other_time && cell < other_cell);
+  }// isEarlier
+
+  //*** Access methods ***//
+
+  /**
+   * Provides read access to the number of pending divisions
+   *
+   * @return the number of events in the queue.
+   */
+  public int size()
+  {
+    return this.size;
+  }// size
+
+  /**
+   * Provides read access to the time of the earliest division
+   *
+   * @return the time of the first event, the queue must not be empty.
+   */
+  public double getFirstTime()
+  {
+    return division_times[0];
+  }// getFirstTime
+}// DivisionEventQueue
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.SplittableRandom;
+
+/**
+ * The division path of a simulation: replication, segregation and labelled
+ * fraction update of a mother cell's genome into two daughter cells.
+ *
+ * A kernel keeps its own scratch buffer for the genomes of a mother and its
+ * daughters and works on genome state handles interned in a shared
+ * GenomeStateTable, so once the table holds the states in circulation a
+ * division allocates nothing on the heap. A kernel must only be used by one
+ * thread at a time; threads dividing cells of the same simulation each use
+ * their own kernel over the shared table.
+ *
+ * @see kc_phd_cambridge.cellproliferation.Simulation
+ * @see kc_phd_cambridge.cellproliferation.GenomeStateTable
+ * @author Kyata Chibalabala
+ */
+public class DivisionKernel
+{
+  // Class variables
+  private static final long PAIR_LOWEST_BITS = 0x1111111111111111L; // The first strand of the first chromosome of every pair
+  private static final int WORDS_PER_RANDOM_LONG = Long.SIZE / PackedDiploidGenome.PAIRS_PER_WORD; // The words whose pairs one random long decides
+
+  // Instance variables
+  private final int haploid_number;
+  private final long[] genome_word_masks; // The strands present in each word of a packed genome
+  private final KaryotypeTable karyotype;
+  private final GenomeStateTable genome_states;
+  private final long[] genome_buffer; // Scratch space for the genomes of a mother cell and its two daughters
+
+  /**
+   * Constructor.
+   *
+   * @param new_karyotype the chromosome sizes of the simulated organism.
+   * @param new_genome_states the genome states shared by the cells of the simulation.
+   */
+  public DivisionKernel(KaryotypeTable new_karyotype, GenomeStateTable new_genome_states)
+  {
+    this.karyotype = new_karyotype;
+    this.genome_states = new_genome_states;
+    this.haploid_number = karyotype.getHaploidNumber();
+    this.genome_word_masks = new long[PackedDiploidGenome.wordsPerGenome(haploid_number)];
+    for(int word = 0; word < genome_word_masks.length; word++)
+    {
+      genome_word_masks[word] = PackedDiploidGenome.wordMask(haploid_number, word);
+    }
+    this.genome_buffer = new long[3 * genome_word_masks.length];
+  }// Constructor
+  
+  /**
+   * Models DNA synthesis during S-Phase, takes the genome from a mother cell 
+   * (daughter_cell_one) and produces two genomes for two daughter cells; also 
+   * handles stochastic chromosome segregation into daughter cell one or two.
+   * 
+   * Works a packed genome word at a time, replicating and segregating up to 16
+   * homologous pairs with each group of bitwise operations. The segregation
+   * coin flips come as the bits of one random long per 64 pairs, a single one
+   * for the organisms simulated, and are applied as a masked swap. The
+   * labelled base counts of both daughters are updated from the strands that
+   * change, so the cost does not grow with the number of labelled strands in
+   * the genome. The resulting genomes are interned and the daughters record
+   * only their handles.
+   * 
+   * @param cell_population the population holding both daughter cells
+   * @param index_of_daughter_cell_one the population index of daughter cell one, carrying the mother's genome
+   * @param index_of_daughter_cell_two the population index of daughter cell two, carrying a blank genome
+   * @param random the generator deciding chromosome segregation
+   */
+  public void performSPhase(CellPopulation cell_population, int index_of_daughter_cell_one, int index_of_daughter_cell_two, SplittableRandom random)
+  {
+    performGuidedSPhase(cell_population, index_of_daughter_cell_one, index_of_daughter_cell_two, random, null, false);
+  }// performSPhase
+  
+  /**
+   * Models DNA synthesis during S-Phase as performSPhase does, except that the
+   * coin flips are drawn from the seed of the division rather than from a
+   * generator, so that runs sharing the seed segregate the genome alike.
+   * 
+   * @param cell_population the population holding both daughter cells
+   * @param index_of_daughter_cell_one the population index of daughter cell one, carrying the mother's genome
+   * @param index_of_daughter_cell_two the population index of daughter cell two, carrying a blank genome
+   * @param segregation_seed the seed of the division, from RandomStreams.segregationSeed
+   */
+  public void performSPhase(CellPopulation cell_population, int index_of_daughter_cell_one, int index_of_daughter_cell_two, long segregation_seed)
+  {
+    segregate(cell_population, index_of_daughter_cell_one, index_of_daughter_cell_two, null, segregation_seed, null, false);
+  }// performSPhase
+  
+  /**
+   * Models DNA synthesis during S-Phase as performSPhase does, except that the
+   * swap of each guided pair's second chromosome is not left to chance but
+   * made so that the chromosome's unlabelled template strand goes to the 
+   * chosen daughter cell, which keeps the template strands of the pair
+   * together in the cell an importance sampled line of descent follows.
+   * 
+   * A guided pair whose second chromosome does not have exactly one unlabelled
+   * strand is swapped with p = 0.5, like every pair that is not guided.
+   * 
+   * @param cell_population the population holding both daughter cells
+   * @param index_of_daughter_cell_one the population index of daughter cell one, carrying the mother's genome
+   * @param index_of_daughter_cell_two the population index of daughter cell two, carrying a blank genome
+   * @param random the generator deciding chromosome segregation
+   * @param guided_pairs for each word of the packed genome, the lowest strand bit of each guided pair, or null if no pair is guided
+   * @param into_daughter_cell_two whether the template strands of guided pairs go to daughter cell two rather than one
+   */
+  public void performGuidedSPhase(CellPopulation cell_population, int index_of_daughter_cell_one, int index_of_daughter_cell_two, SplittableRandom random,
+      long[] guided_pairs, boolean into_daughter_cell_two)
+  {
+    segregate(cell_population, index_of_daughter_cell_one, index_of_daughter_cell_two, random, 0L, guided_pairs, into_daughter_cell_two);
+  }// performGuidedSPhase
+  
+  /**
+   * Replicates and segregates the genome, drawing the coin flips from the
+   * generator or, if it is null, from the seed of the division.
+   */
+  private void segregate(CellPopulation cell_population, int index_of_daughter_cell_one, int index_of_daughter_cell_two, SplittableRandom random,
+      long segregation_seed, long[] guided_pairs, boolean into_daughter_cell_two)
+  {
+    int mother_genome_state = cell_population.getGenomeState(index_of_daughter_cell_one);
+    if(mother_genome_state == genome_states.getFullyLabelledGenome())
+    {// Replicating a fully labelled genome gives two fully labelled genomes whatever the segregation
+      cell_population.setGenomeState(index_of_daughter_cell_two, mother_genome_state);
+      return;
+    }
+    
+    // The mother's genome followed by the genomes of daughter cells one and two
+    final int words_per_genome = genome_word_masks.length, genome_one = words_per_genome, genome_two = 2 * words_per_genome;
+    genome_states.copyWords(mother_genome_state, genome_buffer, 0);
+    long mother_labelled_bases = genome_states.getLabelledBases(mother_genome_state);
+    long daughter_one_labelled_bases = mother_labelled_bases;
+    long bases_swapped_into_daughter_one = 0;
+    long random_bits = 0L; // One coin flip per homologous pair, for the pairs of up to four words
+
+    for (int word = 0; word < words_per_genome; word++)
+    {// foreach word of the packed genome
+      long mother_word = genome_buffer[word], strands_present = genome_word_masks[word];
+      
+      /* New strands will be formed such that the new combinations of double
+      stranded DNA will be OS-NS and NS-OS (OS=Original Strand,
+      NS=New Strand). Daughter cell one keeps the first original strand of
+      every chromosome and daughter cell two receives the second.
+      */
+      long daughter_one_word = (mother_word & PackedDiploidGenome.FIRST_STRAND_MASK) | (PackedDiploidGenome.SECOND_STRAND_MASK & strands_present);
+      long daughter_two_word = (mother_word & PackedDiploidGenome.SECOND_STRAND_MASK) | (PackedDiploidGenome.FIRST_STRAND_MASK & strands_present);
+      
+      // Daughter cell one gains the bases of every unlabelled second strand it now has a new copy of
+      daughter_one_labelled_bases += karyotype.strandBases(word, PackedDiploidGenome.SECOND_STRAND_MASK & strands_present & ~mother_word);
+      
+      // Perform the logic to model stochastic distribution of each double
+      // stranded DNA complex into daughter cells, the second homologous 
+      // chromosome of each pair is swapped between daughter cells with p = 0.5,
+      // the swaps of a word's 16 pairs are one 16 bit slice of a random long
+      if((word & (WORDS_PER_RANDOM_LONG - 1)) == 0)
+        random_bits = random != null ? random.nextLong() : RandomStreams.segregationBits(segregation_seed, word / WORDS_PER_RANDOM_LONG);
+      long swapped_pairs = spreadToPairs(random_bits >>> (PackedDiploidGenome.PAIRS_PER_WORD * (word & (WORDS_PER_RANDOM_LONG - 1)))) & strands_present;
+      if(guided_pairs != null)
+      {// Without a swap the second chromosome's first strand goes to daughter cell one
+        long unlabelled_first_strand = ((strands_present & ~mother_word) >>> 2) & PAIR_LOWEST_BITS;
+        long unlabelled_second_strand = ((strands_present & ~mother_word) >>> 3) & PAIR_LOWEST_BITS;
+        long decided_pairs = guided_pairs[word] & (unlabelled_first_strand ^ unlabelled_second_strand);
+        long decided_swaps = decided_pairs & (into_daughter_cell_two ? unlabelled_first_strand : unlabelled_second_strand);
+        swapped_pairs = (swapped_pairs & ~decided_pairs) | decided_swaps;
+      }
+      long swap_mask = (swapped_pairs << 2) | (swapped_pairs << 3); // Both strands of each swapped second chromosome
+      long swapped_strands = (daughter_one_word ^ daughter_two_word) & swap_mask;
+      bases_swapped_into_daughter_one += karyotype.strandBases(word, swapped_strands & daughter_two_word) - karyotype.strandBases(word, swapped_strands & daughter_one_word);
+
+      genome_buffer[genome_one + word] = daughter_one_word ^ swapped_strands;
+      genome_buffer[genome_two + word] = daughter_two_word ^ swapped_strands;
+    }// foreach word of the packed genome
+    
+    // Every new strand is labelled, so between them the daughters hold the 
+    // mother's labelled bases plus one full genome's worth of new strands
+    long daughter_two_labelled_bases = mother_labelled_bases + karyotype.getTotalBases() - daughter_one_labelled_bases;
+    daughter_one_labelled_bases += bases_swapped_into_daughter_one;
+    daughter_two_labelled_bases -= bases_swapped_into_daughter_one;
+
+    // Write the new genome states back into the corresponding daughter cells
+    cell_population.setGenomeState(index_of_daughter_cell_one, genome_states.intern(genome_buffer, genome_one, daughter_one_labelled_bases));
+    cell_population.setGenomeState(index_of_daughter_cell_two, genome_states.intern(genome_buffer, genome_two, daughter_two_labelled_bases));
+  }// segregate
+  
+  /**
+   * Moves the low 16 bits of a random long to the lowest bit of each of the 16
+   * homologous pairs of a packed genome word, by halving the distance between
+   * groups of bits at each step.
+   */
+  private static long spreadToPairs(long bits)
+  {
+    bits &= 0xFFFFL;
+    bits = (bits | (bits << 24)) & 0x000000FF000000FFL;
+    bits = (bits | (bits << 12)) & 0x000F000F000F000FL;
+    bits = (bits | (bits << 6)) & 0x0303030303030303L;
+    bits = (bits | (bits << 3)) & PAIR_LOWEST_BITS;
+    return bits;
+  }// spreadToPairs
+}// DivisionKernel
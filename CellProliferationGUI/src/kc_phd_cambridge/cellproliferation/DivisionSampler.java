@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.SplittableRandom;
+
+/**
+ * Picks the cells of a partition that divide during a timestep, each with the
+ * same division probability.
+ *
+ * Rather than one random number per cell, the number of cells skipped before
+ * the next dividing cell is drawn from the geometric distribution of the
+ * division probability, so the random numbers drawn are proportional to the
+ * number of divisions rather than to the number of cells. With a division
+ * probability of 1 every cell divides and no random numbers are drawn.
+ *
+ * A sampler is seeded from its partition's division seed, derived by 
+ * RandomStreams apart from the partition's segregation seed, so the serial 
+ * loop and both passes of a parallel timestep pick the same cells.
+ *
+ * @see kc_phd_cambridge.cellproliferation.ParallelTimestep
+ * @author Kyata Chibalabala
+ */
+public class DivisionSampler
+{
+  // Instance variables
+  private final double division_probability;
+  private final double log_of_no_division; // ln(1 - division probability)
+  private final SplittableRandom division_random;
+
+  /**
+   * Constructor.
+   *
+   * @param new_division_probability the probability that a cell divides during the timestep.
+   * @param division_seed the division seed of the partition whose cells are picked, see RandomStreams.divisionSeed.
+   */
+  public DivisionSampler(double new_division_probability, long division_seed)
+  {
+    this.division_probability = new_division_probability;
+    this.log_of_no_division = Math.log1p(-new_division_probability);
+    this.division_random = new_division_probability > 0.0 && new_division_probability < 1.0 ? new SplittableRandom(division_seed) : null;
+  }// Constructor
+
+  /**
+   * Finds the next cell that divides.
+   *
+   * @param cell_index the index of the first cell that may divide.
+   * @param end_index the index after the last cell of the partition.
+   * @return the index of the next dividing cell, or end_index if no other cell of the partition divides.
+   */
+  public int nextDividingCell(int cell_index, int end_index)
+  {
+    if(division_probability >= 1.0)
+      return cell_index;
+    if(division_probability <= 0.0)
+      return end_index;
+
+    // The number of cells that do not divide before the next one that does
+    double cells_skipped = Math.floor(Math.log(1.0 - division_random.nextDouble()) / log_of_no_division);
+    return (int)Math.min(cell_index + cells_skipped, end_index);
+  }// nextDividingCell
+}// DivisionSampler
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/**
+ * Simulates the population by jumping from one cell division to the next
+ * rather than scanning every cell at every time interval.
+ *
+ * When a cell completes M-phase, the population counterpart of Cell.last_div,
+ * its next division is scheduled at that time plus a cell-cycle time in a 
+ * DivisionEventQueue, which holds the only time kept per cell. The earliest division
+ * is taken off the queue, performed with the ordinary DivisionKernel, and both
+ * daughters are scheduled, so the work is proportional to the number of
+ * divisions and each costs O(log n) for the queue.
+ *
+ * Cell-cycle times are continuous, drawn uniformly from time interval x
+ * (1 +/- SimulationData.getCellCycleSpread()). With the default spread of 0
+ * every cell divides once per time interval, as in the synchronous model. The
+ * run ends at the end of the last time interval of the synchronous model.
+ *
+ * @see kc_phd_cambridge.cellproliferation.DivisionEventQueue
+ * @see kc_phd_cambridge.cellproliferation.SimulationEngine
+ * @author Kyata Chibalabala
+ */
+public class EventDrivenEngine implements SimulationEngine
+{
+  // Instance variables
+  private final int haploid_number, initial_population_size, simulation_duration, time_interval;
+  private final double cell_cycle_spread;
+  private final DivisionKernel division_kernel;
+  private final SplittableRandom simulation_random;
+  private final CellIdAllocator.IdBlock cell_ids;
+
+  /**
+   * Constructor.
+   *
+   * @param input_parameters the parameters of the run, including the spread of cell-cycle times.
+   * @param karyotype the chromosome sizes of the simulated organism.
+   * @param genome_states the genome states of the run.
+   * @param random_streams the random number streams of the run, whose population stream decides cell-cycle times and chromosome segregation.
+   * @param cell_id_allocator the allocator the cell IDs are taken from.
+   * @throws IllegalArgumentException if the spread of cell-cycle times is outside [0, 1).
+   */
+  public EventDrivenEngine(SimulationData input_parameters, KaryotypeTable karyotype, GenomeStateTable genome_states,
+      RandomStreams random_streams, CellIdAllocator cell_id_allocator)
+  {
+    this.haploid_number = karyotype.getHaploidNumber();
+    this.initial_population_size = input_parameters.getInitialPopulationSize();
+    this.simulation_duration = input_parameters.getSimulationDuration();
+    this.time_interval = input_parameters.getTimeInterval();
+    this.cell_cycle_spread = input_parameters.getCellCycleSpread();
+    if(!(cell_cycle_spread >= 0.0 && cell_cycle_spread < 1.0))
+      throw new IllegalArgumentException("The cell-cycle spread must be from 0 to below 1, not " + cell_cycle_spread);
+    this.division_kernel = new DivisionKernel(karyotype, genome_states);
+    this.simulation_random = random_streams.populationStream();
+    this.cell_ids = cell_id_allocator.newIdBlock();
+  }// Constructor
+
+  @Override
+  public void simulate(RecordWriter output_writer, int[] newest_generation) throws IOException
+  {
+    final int number_of_timesteps = (simulation_duration + time_interval - 1) / time_interval;
+    final double end_time = (double)number_of_timesteps * time_interval;
+    CellPopulation cell_population = new HeapCellPopulation(haploid_number, initial_population_size);
+    DivisionEventQueue division_queue = new DivisionEventQueue(initial_population_size);
+
+    for(int lineage = 0; lineage < initial_population_size; lineage++)
+    {// the founders are all born at time 0
+      int founder = cell_population.append(cell_ids.nextId(), lineage, 0);
+      division_queue.add(cellCycleTime(), founder);
+      newest_generation[lineage] = 0;
+    }
+
+    while(division_queue.size() > 0 && division_queue.getFirstTime() <= end_time)
+    {// until the next division falls after the end of the run
+      double division_time = division_queue.getFirstTime();
+      int mother_cell_index = division_queue.removeFirst();
+      int lineage = cell_population.getLineageId(mother_cell_index);
+      int next_generation = cell_population.getGeneration(mother_cell_index) + 1;
+
+      cell_population.setGeneration(mother_cell_index, next_generation);
+      int index_of_daughter_cell_two = cell_population.append(cell_ids.nextId(), lineage, next_generation);
+      division_kernel.performSPhase(cell_population, mother_cell_index, index_of_daughter_cell_two, simulation_random);
+      division_queue.add(division_time + cellCycleTime(), mother_cell_index);
+      division_queue.add(division_time + cellCycleTime(), index_of_daughter_cell_two);
+      newest_generation[lineage] = Math.max(newest_generation[lineage], next_generation);
+
+      output_writer.writeRecord(cell_population.getCellId(mother_cell_index), next_generation, lineage, cell_population.getGenomeState(mother_cell_index));
+      output_writer.writeRecord(cell_population.getCellId(index_of_daughter_cell_two), next_generation, lineage, cell_population.getGenomeState(index_of_daughter_cell_two));
+    }
+  }// simulate
+
+  /**
+   * Draws the time from one division of a cell to the next.
+   */
+  private double cellCycleTime()
+  {
+    if(cell_cycle_spread == 0.0)
+      return time_interval;
+    return time_interval * (1.0 + cell_cycle_spread * (2.0 * simulation_random.nextDouble() - 1.0));
+  }// cellCycleTime
+}// EventDrivenEngine
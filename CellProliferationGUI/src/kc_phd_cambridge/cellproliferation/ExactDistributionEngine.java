@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Computes the distribution of the labelled percentage of each generation
+ * exactly, without simulating any cell.
+ *
+ * Following the replication and segregation rules of performSPhase, a cell of
+ * generation g (g at least 1) picked at random from its lineage carries
+ *
+ *  - one unlabelled strand on the first chromosome of every pair, or on none,
+ *    since first chromosomes are never swapped and all follow the same
+ *    daughter; every first chromosome keeps its template strand with
+ *    probability q = 2^(1-g);
+ *  - one unlabelled strand on the second chromosome of each pair
+ *    independently with probability q, since each second chromosome is
+ *    swapped between the daughters by its own coin.
+ *
+ * The unlabelled bases of a cell are thus the sum of independent chromosome
+ * contributions. The sums over subsets of second chromosomes are convolved
+ * once per karyotype into bins of BIN_WIDTH percent, keeping for each number
+ * of chromosomes in the subset the number of subsets in each bin and their
+ * summed size. The distribution of a generation is then a reweighting of these
+ * bins by q, so every generation costs the same small amount of work whatever
+ * the number of cells. Bin masses and the mean percentage within each bin are
+ * exact; only the grouping of values into bins is approximate.
+ *
+ * For each lineage and generation one record is written per occupied bin,
+ * carrying the bin's mean labelled percentage and, as its weight, the
+ * expected number of cells of the generation falling in the bin, so that
+ * DataAnalysis reports the exact mean of every generation.
+ *
+ * @see kc_phd_cambridge.cellproliferation.SimulationEngine
+ * @author Kyata Chibalabala
+ */
+public class ExactDistributionEngine implements SimulationEngine
+{
+  // Class variables
+  public static final double BIN_WIDTH = 0.01; // Percentage labelled covered by each bin
+
+  // Instance variables
+  private final KaryotypeTable karyotype;
+  private final int initial_population_size, number_of_generations;
+  private final int haploid_number;
+  private final double total_bases, first_chromosome_bases;
+  // Subsets of second chromosomes: [number of chromosomes in subset][bin]
+  private final double[][] subset_counts, subset_size_sums;
+
+  /**
+   * Constructor, convolves the chromosome sizes of the karyotype.
+   *
+   * @param input_parameters the parameters of the run.
+   * @param new_karyotype the chromosome sizes of the simulated organism.
+   */
+  public ExactDistributionEngine(SimulationData input_parameters, KaryotypeTable new_karyotype)
+  {
+    this.karyotype = new_karyotype;
+    this.initial_population_size = input_parameters.getInitialPopulationSize();
+    this.number_of_generations = (input_parameters.getSimulationDuration() + input_parameters.getTimeInterval() - 1) / input_parameters.getTimeInterval();
+    this.haploid_number = karyotype.getHaploidNumber();
+    this.total_bases = karyotype.getTotalBases();
+
+    double second_chromosome_bases = 0, first_bases = 0;
+    for(int homologous_pair = 0; homologous_pair < haploid_number; homologous_pair++)
+    {
+      first_bases += karyotype.getHomologSize(homologous_pair, 0);
+      second_chromosome_bases += karyotype.getHomologSize(homologous_pair, 1);
+    }
+    this.first_chromosome_bases = first_bases;
+
+    int number_of_bins = binOf(second_chromosome_bases) + 1;
+    subset_counts = new double[haploid_number + 1][number_of_bins];
+    subset_size_sums = new double[haploid_number + 1][number_of_bins];
+    subset_counts[0][0] = 1;
+    for(int homologous_pair = 0; homologous_pair < haploid_number; homologous_pair++)
+    {// Add each second chromosome to every subset without it, largest subsets first
+      double chromosome_size = karyotype.getHomologSize(homologous_pair, 1);
+      for(int subset_size = homologous_pair; subset_size >= 0; subset_size--)
+      {
+        for(int bin = number_of_bins - 1; bin >= 0; bin--)
+        {
+          double count = subset_counts[subset_size][bin];
+          if(count == 0)
+            continue;
+          double size_sum = subset_size_sums[subset_size][bin] + count * chromosome_size;
+          int new_bin = Math.min(number_of_bins - 1, binOf(size_sum / count));
+          subset_counts[subset_size + 1][new_bin] += count;
+          subset_size_sums[subset_size + 1][new_bin] += size_sum;
+        }
+      }
+    }
+  }// Constructor
+
+  /**
+   * Returns the bin of an unlabelled base count.
+   */
+  private int binOf(double unlabelled_bases)
+  {
+    return (int)(unlabelled_bases / total_bases * 100 / BIN_WIDTH);
+  }// binOf
+
+  @Override
+  public void simulate(RecordWriter output_writer, int[] newest_generation) throws IOException
+  {
+    int number_of_bins = subset_counts[0].length;
+    double[] bin_masses = new double[number_of_bins], bin_base_sums = new double[number_of_bins];
+    double[] subset_probabilities = new double[haploid_number + 1];
+
+    for(int generation = 1; generation <= number_of_generations; generation++)
+    {// for each generation
+      double retention = Math.pow(0.5, generation - 1); // q, the chance a template strand is still in a random cell
+      double cells_in_generation = Math.pow(2, generation);
+      for(int subset_size = 0; subset_size <= haploid_number; subset_size++)
+      {
+        subset_probabilities[subset_size] = Math.pow(retention, subset_size) * Math.pow(1 - retention, haploid_number - subset_size);
+      }
+
+      for(int first_chromosomes_unlabelled = 1; first_chromosomes_unlabelled >= 0; first_chromosomes_unlabelled--)
+      {// with and without the template strands of the first chromosomes
+        double first_chromosome_probability = first_chromosomes_unlabelled == 1 ? retention : 1 - retention;
+        if(first_chromosome_probability == 0)
+          continue;
+        Arrays.fill(bin_masses, 0);
+        Arrays.fill(bin_base_sums, 0);
+        for(int subset_size = 0; subset_size <= haploid_number; subset_size++)
+        {
+          if(subset_probabilities[subset_size] == 0)
+            continue;
+          for(int bin = 0; bin < number_of_bins; bin++)
+          {
+            bin_masses[bin] += subset_counts[subset_size][bin] * subset_probabilities[subset_size];
+            bin_base_sums[bin] += subset_size_sums[subset_size][bin] * subset_probabilities[subset_size];
+          }
+        }
+        for(int bin = 0; bin < number_of_bins; bin++)
+        {// for each occupied bin, a record per lineage
+          if(bin_masses[bin] == 0)
+            continue;
+          double unlabelled_bases = first_chromosomes_unlabelled * first_chromosome_bases + bin_base_sums[bin] / bin_masses[bin];
+          double percentage_labelled = (total_bases - unlabelled_bases) / total_bases * 100;
+          double expected_cells = cells_in_generation * first_chromosome_probability * bin_masses[bin];
+          for(int lineage = 0; lineage < initial_population_size; lineage++)
+          {
+            output_writer.writeRecord(HistogramEngine.NO_CELL_ID, generation, lineage, percentage_labelled, expected_cells);
+          }
+        }
+      }
+    }// for each generation
+
+    for(int lineage = 0; lineage < initial_population_size; lineage++)
+    {
+      newest_generation[lineage] = number_of_generations;
+    }
+  }// simulate
+}// ExactDistributionEngine
@@ -66,6 +66,9 @@ public class GenomeData
  
     // Attempt to import the genome data file and note the boolean result of the attempt
     successful_genome_import = importGenomeData(); 
+    
+    // Chromosome sizes parsed from a previously imported file are no longer valid
+    KaryotypeTable.clearCache();
 	}// Constructor
 
   
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Intern table of the distinct genome label states in a simulation.
+ *
+ * After a few generations almost every cell carries one of a handful of genome
+ * label patterns, most of them the fully labelled genome. Each distinct packed
+ * genome is stored here once and identified by an integer handle, so a cell
+ * only needs to record the handle of its genome state. The number of labelled
+ * bases and the labelled percentage are computed once per state.
+ *
+ * States are never removed, so a handle stays valid for the lifetime of the
+ * table. Looking up a state that is already present takes no lock; only the
+ * insertion of a new state is synchronised, which makes the table safe to share
+ * between threads dividing cells of the same simulation.
+ *
+ * @see kc_phd_cambridge.cellproliferation.PackedDiploidGenome
+ * @author Kyata Chibalabala
+ */
+public class GenomeStateTable
+{
+  // Class variables
+  public static final int UNLABELLED_GENOME = 0; // The handle of the unlabelled genome every founder cell starts with
+  private static final int STATES_PER_CHUNK = 1024, CHUNK_SHIFT = 10, INITIAL_INDEX_SIZE = 1024;
+  private static final int EMPTY_SLOT = 0; // Index slots store handle + 1 so that 0 marks an empty slot
+
+  /**
+   * Storage for a fixed number of states, chunks are never moved once created.
+   */
+  private static final class StateChunk
+  {
+    final long[] words, labelled_bases;
+    final double[] percentages_labelled;
+
+    StateChunk(int words_per_genome)
+    {
+      words = new long[STATES_PER_CHUNK * words_per_genome];
+      labelled_bases = new long[STATES_PER_CHUNK];
+      percentages_labelled = new double[STATES_PER_CHUNK];
+    }
+  }// StateChunk
+
+  // Instance variables
+  private final KaryotypeTable karyotype;
+  private final int words_per_genome;
+  private final long[] word_masks; // The strands present in each word of a packed genome
+  private final int fully_labelled_genome;
+  private volatile StateChunk[] chunks = new StateChunk[0];
+  private volatile AtomicIntegerArray index = new AtomicIntegerArray(INITIAL_INDEX_SIZE); // Open addressing hash index of handles
+  private int number_of_states = 0;
+
+  /**
+   * Constructor, creates a table holding the unlabelled and fully labelled genomes.
+   *
+   * @param new_karyotype the chromosome sizes used to calculate the labelled fraction of each state.
+   */
+  public GenomeStateTable(KaryotypeTable new_karyotype)
+  {
+    this.karyotype = new_karyotype;
+    this.words_per_genome = PackedDiploidGenome.wordsPerGenome(karyotype.getHaploidNumber());
+    this.word_masks = new long[words_per_genome];
+    for(int word = 0; word < words_per_genome; word++)
+    {
+      word_masks[word] = PackedDiploidGenome.wordMask(karyotype.getHaploidNumber(), word);
+    }
+
+    insert(new long[words_per_genome], 0, 0);
+    this.fully_labelled_genome = insert(word_masks, 0, karyotype.getTotalBases());
+  }// Constructor
+
+  /**
+   * Returns the handle of a genome state, adding the state to the table if it is new.
+   *
+   * @param genomes the array holding the packed genome.
+   * @param offset the index of the genome's first word.
+   * @param labelled_bases the number of labelled bases in the genome.
+   * @return the handle of the genome state.
+   */
+  public int intern(long[] genomes, int offset, long labelled_bases)
+  {
+    if(isFullyLabelled(genomes, offset))
+      return fully_labelled_genome;
+
+    int found_state = find(index, genomes, offset, hash(genomes, offset));
+    if(found_state >= 0)
+      return found_state;
+    return insert(genomes, offset, labelled_bases);
+  }// intern
+
+  /**
+   * Returns the handle of a genome state, adding the state to the table if it
+   * is new. The labelled bases of the genome are only summed from its packed
+   * words when the state is added, so a genome whose labelled bases are not
+   * already known costs no more than a lookup once its state is in circulation.
+   *
+   * @param genomes the array holding the packed genome.
+   * @param offset the index of the genome's first word.
+   * @return the handle of the genome state.
+   */
+  public int intern(long[] genomes, int offset)
+  {
+    if(isFullyLabelled(genomes, offset))
+      return fully_labelled_genome;
+
+    int found_state = find(index, genomes, offset, hash(genomes, offset));
+    if(found_state >= 0)
+      return found_state;
+    return insert(genomes, offset, karyotype.labelledBases(genomes, offset));
+  }// intern
+
+  /**
+   * Adds a new genome state, re-checking under the lock in case another thread added it first.
+   */
+  private synchronized int insert(long[] genomes, int offset, long labelled_bases)
+  {
+    int genome_hash = hash(genomes, offset);
+    int found_state = find(index, genomes, offset, genome_hash);
+    if(found_state >= 0)
+      return found_state;
+
+    int new_state = number_of_states;
+    if((new_state >>> CHUNK_SHIFT) == chunks.length)
+    {// Current chunks are full
+      StateChunk[] grown_chunks = Arrays.copyOf(chunks, chunks.length + 1);
+      grown_chunks[chunks.length] = new StateChunk(words_per_genome);
+      chunks = grown_chunks;
+    }
+    StateChunk chunk = chunks[new_state >>> CHUNK_SHIFT];
+    int slot = new_state & (STATES_PER_CHUNK - 1);
+    System.arraycopy(genomes, offset, chunk.words, slot * words_per_genome, words_per_genome);
+    chunk.labelled_bases[slot] = labelled_bases;
+    chunk.percentages_labelled[slot] = karyotype.percentageLabelled(labelled_bases);
+    number_of_states++;
+
+    if(number_of_states * 2 > index.length())
+      index = rebuildIndex(index.length() * 2);
+    else
+      place(index, new_state, genome_hash);
+    return new_state;
+  }// insert
+
+  /**
+   * Probes the hash index for a genome state.
+   *
+   * @return the handle of the state or -1 if it is not in the table.
+   */
+  private int find(AtomicIntegerArray current_index, long[] genomes, int offset, int genome_hash)
+  {
+    int mask = current_index.length() - 1;
+    for(int position = genome_hash & mask; ; position = (position + 1) & mask)
+    {
+      int entry = current_index.get(position);
+      if(entry == EMPTY_SLOT)
+        return -1;
+      if(matches(entry - 1, genomes, offset))
+        return entry - 1;
+    }
+  }// find
+
+  /**
+   * Writes a handle into the first free slot of its probe sequence.
+   */
+  private static void place(AtomicIntegerArray target_index, int state, int genome_hash)
+  {
+    int mask = target_index.length() - 1;
+    int position = genome_hash & mask;
+    while(target_index.get(position) != EMPTY_SLOT)
+    {
+      position = (position + 1) & mask;
+    }
+    target_index.set(position, state + 1);
+  }// place
+
+  /**
+   * Creates a larger hash index holding every state in the table.
+   */
+  private AtomicIntegerArray rebuildIndex(int new_size)
+  {
+    AtomicIntegerArray new_index = new AtomicIntegerArray(new_size);
+    for(int state = 0; state < number_of_states; state++)
+    {
+      StateChunk chunk = chunks[state >>> CHUNK_SHIFT];
+      place(new_index, state, hash(chunk.words, (state & (STATES_PER_CHUNK - 1)) * words_per_genome));
+    }
+    return new_index;
+  }// rebuildIndex
+
+  private boolean matches(int state, long[] genomes, int offset)
+  {
+    StateChunk chunk = chunks[state >>> CHUNK_SHIFT];
+    int state_offset = (state & (STATES_PER_CHUNK - 1)) * words_per_genome;
+    for(int word = 0; word < words_per_genome; word++)
+    {
+      if(chunk.words[state_offset + word] != genomes[offset + word])
+        return false;
+    }
+    return true;
+  }// matches
+
+  private boolean isFullyLabelled(long[] genomes, int offset)
+  {
+    for(int word = 0; word < words_per_genome; word++)
+    {
+      if(genomes[offset + word] != word_masks[word])
+        return false;
+    }
+    return true;
+  }// isFullyLabelled
+
+  private int hash(long[] genomes, int offset)
+  {
+    long genome_hash = 0;
+    for(int word = 0; word < words_per_genome; word++)
+    {
+      genome_hash = (genome_hash ^ genomes[offset + word]) * 0x9E3779B97F4A7C15L;
+      genome_hash ^= genome_hash >>> 32;
+    }
+    return (int)genome_hash;
+  }// hash
+
+  //*** Access methods ***//
+
+  /**
+   * Copies the packed words of a genome state into an array.
+   *
+   * @param state the handle of the genome state.
+   * @param destination the array receiving the packed genome.
+   * @param offset the index the first word is written to.
+   */
+  public void copyWords(int state, long[] destination, int offset)
+  {
+    System.arraycopy(chunks[state >>> CHUNK_SHIFT].words, (state & (STATES_PER_CHUNK - 1)) * words_per_genome, destination, offset, words_per_genome);
+  }// copyWords
+
+  /**
+   * Provides a copy of a genome state as a PackedDiploidGenome
+   *
+   * @param state the handle of the genome state.
+   * @return a new genome object holding the state's strands.
+   */
+  public PackedDiploidGenome getGenome(int state)
+  {
+    return new PackedDiploidGenome(karyotype.getHaploidNumber(), chunks[state >>> CHUNK_SHIFT].words, (state & (STATES_PER_CHUNK - 1)) * words_per_genome);
+  }// getGenome
+
+  /**
+   * Provides read access to the number of labelled bases of a genome state
+   *
+   * @param state the handle of the genome state.
+   * @return the number of labelled bases.
+   */
+  public long getLabelledBases(int state)
+  {
+    return chunks[state >>> CHUNK_SHIFT].labelled_bases[state & (STATES_PER_CHUNK - 1)];
+  }// getLabelledBases
+
+  /**
+   * Provides read access to the labelled percentage of a genome state
+   *
+   * @param state the handle of the genome state.
+   * @return the percentage of the genome that is labelled.
+   */
+  public double getPercentageLabelled(int state)
+  {
+    return chunks[state >>> CHUNK_SHIFT].percentages_labelled[state & (STATES_PER_CHUNK - 1)];
+  }// getPercentageLabelled
+
+  /**
+   * Provides read access to the handle of the fully labelled genome
+   *
+   * @return the handle of the genome whose strands are all labelled.
+   */
+  public int getFullyLabelledGenome()
+  {
+    return this.fully_labelled_genome;
+  }// getFullyLabelledGenome
+
+  /**
+   * Provides read access to the number of packed words in each genome state
+   *
+   * @return the number of words per genome.
+   */
+  public int getWordsPerGenome()
+  {
+    return this.words_per_genome;
+  }// getWordsPerGenome
+
+  /**
+   * Provides read access to the number of distinct genome states seen so far
+   *
+   * @return the number of states in the table.
+   */
+  public synchronized int size()
+  {
+    return this.number_of_states;
+  }// size
+}// GenomeStateTable
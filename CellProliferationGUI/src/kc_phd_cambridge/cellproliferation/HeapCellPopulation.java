@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays storage for a growing cell population on the Java heap.
+ *
+ * Instead of one Cell object per cell, the properties of every cell are held in
+ * parallel primitive arrays indexed by the cell's position in the population.
+ * A cell's genome is recorded as the handle of its genome label state in a
+ * GenomeStateTable, which holds the packed genome and the running count of its
+ * labelled bases once for all cells sharing that state.
+ *
+ * Appending a cell is amortised O(1), the arrays grow by doubling, and cells
+ * are updated in place, so no copy of the population is made during division.
+ *
+ * @see kc_phd_cambridge.cellproliferation.CellPopulation
+ * @see kc_phd_cambridge.cellproliferation.GenomeStateTable
+ * @author Kyata Chibalabala
+ */
+public class HeapCellPopulation implements CellPopulation
+{
+  // Instance variables
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int MAXIMUM_CAPACITY = Integer.MAX_VALUE - 8; // The largest array length every JVM can allocate
+  private final int haploid_number;
+  private int size; // The number of cells currently stored
+  private long[] cell_ids;
+  private int[] lineage_ids, generations;
+  private int[] genome_states; // The handle of each cell's genome state
+
+  /**
+   * Constructor.
+   *
+   * @param new_haploid_number the haploid number of the organism whose cells are stored.
+   * @param initial_capacity the number of cells that can be stored before the arrays need to grow.
+   */
+  public HeapCellPopulation(int new_haploid_number, int initial_capacity)
+  {
+    int capacity = Math.max(initial_capacity, INITIAL_CAPACITY);
+    this.haploid_number = new_haploid_number;
+    this.size = 0;
+    this.cell_ids = new long[capacity];
+    this.lineage_ids = new int[capacity];
+    this.generations = new int[capacity];
+    this.genome_states = new int[capacity];
+  }// Constructor
+
+  @Override
+  public int append(long new_id, int new_lineage_id, int new_generation)
+  {
+    ensureCapacity(size + 1L);
+    int index = size;
+    cell_ids[index] = new_id;
+    lineage_ids[index] = new_lineage_id;
+    generations[index] = new_generation;
+    genome_states[index] = GenomeStateTable.UNLABELLED_GENOME;
+    size++;
+    return index;
+  }// append
+
+  @Override
+  public int appendCells(int number_of_cells)
+  {
+    ensureCapacity((long)size + number_of_cells);
+    int first_index = size;
+    Arrays.fill(genome_states, first_index, first_index + number_of_cells, GenomeStateTable.UNLABELLED_GENOME);
+    size += number_of_cells;
+    return first_index;
+  }// appendCells
+
+  /**
+   * Grows the arrays, by doubling, so that at least required_capacity cells can
+   * be stored. The capacity is capped at the largest array a JVM can allocate.
+   *
+   * @throws OutOfMemoryError if more cells are required than an array can hold.
+   */
+  private void ensureCapacity(long required_capacity)
+  {
+    if(required_capacity <= cell_ids.length)
+      return;
+    if(required_capacity > MAXIMUM_CAPACITY)
+      throw new OutOfMemoryError("A heap population can not hold " + required_capacity + " cells, the maximum is " + MAXIMUM_CAPACITY);
+
+    long new_capacity = cell_ids.length;
+    while(new_capacity < required_capacity)
+    {
+      new_capacity = Math.min(new_capacity * 2, MAXIMUM_CAPACITY);
+    }
+    cell_ids = Arrays.copyOf(cell_ids, (int)new_capacity);
+    lineage_ids = Arrays.copyOf(lineage_ids, (int)new_capacity);
+    generations = Arrays.copyOf(generations, (int)new_capacity);
+    genome_states = Arrays.copyOf(genome_states, (int)new_capacity);
+  }// ensureCapacity
+
+  //*** Access methods ***//
+
+  @Override
+  public int size()
+  {
+    return this.size;
+  }// size
+
+  @Override
+  public int getHaploidNumber()
+  {
+    return this.haploid_number;
+  }// getHaploidNumber
+
+  @Override
+  public long getCellId(int index)
+  {
+    return cell_ids[index];
+  }// getCellId
+
+  @Override
+  public void setCellId(int index, long new_id)
+  {
+    cell_ids[index] = new_id;
+  }// setCellId
+
+  @Override
+  public int getLineageId(int index)
+  {
+    return lineage_ids[index];
+  }// getLineageId
+
+  @Override
+  public void setLineageId(int index, int new_lineage_id)
+  {
+    lineage_ids[index] = new_lineage_id;
+  }// setLineageId
+
+  @Override
+  public int getGeneration(int index)
+  {
+    return generations[index];
+  }// getGeneration
+
+  @Override
+  public void setGeneration(int index, int new_generation)
+  {
+    generations[index] = new_generation;
+  }// setGeneration
+
+  @Override
+  public int getGenomeState(int index)
+  {
+    return genome_states[index];
+  }// getGenomeState
+
+  @Override
+  public void setGenomeState(int index, int new_genome_state)
+  {
+    genome_states[index] = new_genome_state;
+  }// setGenomeState
+}// HeapCellPopulation
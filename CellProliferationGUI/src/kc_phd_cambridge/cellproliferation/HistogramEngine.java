@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Simulates the population as counts of interchangeable cells.
+ *
+ * Cells of the same lineage and generation with the same genome state are
+ * indistinguishable to everything DataAnalysis computes, so the population is
+ * kept as bins of (lineage, generation, genome state) with a cell count.
+ * At each timestep every cell of a bin divides. A mother genome's segregation
+ * only matters for the homologous pairs whose second chromosome differs
+ * between the daughters; the bin's cells are split over the outcomes of those
+ * pairs one pair at a time, each split an exact Binomial(n, 1/2) draw, which
+ * together make the multinomial draw over all outcomes. The work per timestep
+ * grows with the number of distinct states, not with the number of cells.
+ *
+ * Each record written stands for a whole bin and carries its cell count as the
+ * record's weight; since no single cell is described the cell ID is -1.
+ *
+ * @see kc_phd_cambridge.cellproliferation.SimulationEngine
+ * @author Kyata Chibalabala
+ */
+public class HistogramEngine implements SimulationEngine
+{
+  // Class variables
+  public static final long NO_CELL_ID = -1; // The cell ID of a record that stands for a bin of cells
+  private static final int BITS_PER_WORD = 64;
+
+  /**
+   * The bins of one lineage, in the order they were created.
+   */
+  private static final class Bins
+  {
+    int size = 0;
+    int[] generations = new int[16], states = new int[16];
+    long[] counts = new long[16];
+    final Map<Long, Integer> index = new HashMap<>(); // (generation, state) to bin
+
+    void add(int generation, int state, long count)
+    {
+      Long key = ((long)generation << 32) | (state & 0xFFFFFFFFL);
+      Integer bin = index.get(key);
+      if(bin != null)
+      {
+        counts[bin] += count;
+        return;
+      }
+      if(size == states.length)
+      {
+        generations = Arrays.copyOf(generations, size * 2);
+        states = Arrays.copyOf(states, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+      generations[size] = generation;
+      states[size] = state;
+      counts[size] = count;
+      index.put(key, size);
+      size++;
+    }
+  }// Bins
+
+  // Instance variables
+  private final KaryotypeTable karyotype;
+  private final GenomeStateTable genome_states;
+  private final RandomStreams random_streams;
+  private final int initial_population_size, simulation_duration, time_interval;
+  private final int words_per_genome;
+  private final long[] genome_word_masks;
+  private final long[] genome_buffer; // The mother genome, then daughter genomes one and two before segregation
+  private long[] relevant_pairs = new long[0]; // The swap mask of each pair whose segregation matters, with its word
+  private int[] relevant_pair_words = new int[0];
+  private long[] outcome_genomes, outcome_counts = new long[16]; // The two daughter genomes and number of mothers of each outcome
+
+  /**
+   * Constructor.
+   *
+   * @param input_parameters the parameters of the run.
+   * @param new_karyotype the chromosome sizes of the simulated organism.
+   * @param new_genome_states the genome states of the run.
+   * @param random_streams the random number streams of the run, each lineage uses its own stream.
+   */
+  public HistogramEngine(SimulationData input_parameters, KaryotypeTable new_karyotype, GenomeStateTable new_genome_states, RandomStreams random_streams)
+  {
+    this.karyotype = new_karyotype;
+    this.genome_states = new_genome_states;
+    this.random_streams = random_streams;
+    this.initial_population_size = input_parameters.getInitialPopulationSize();
+    this.simulation_duration = input_parameters.getSimulationDuration();
+    this.time_interval = input_parameters.getTimeInterval();
+    this.words_per_genome = genome_states.getWordsPerGenome();
+    this.genome_word_masks = new long[words_per_genome];
+    for(int word = 0; word < words_per_genome; word++)
+    {
+      genome_word_masks[word] = PackedDiploidGenome.wordMask(karyotype.getHaploidNumber(), word);
+    }
+    this.genome_buffer = new long[3 * words_per_genome];
+    this.outcome_genomes = new long[16 * 2 * words_per_genome];
+  }// Constructor
+
+  @Override
+  public void simulate(RecordWriter output_writer, int[] newest_generation) throws IOException
+  {
+    for(int lineage = 0; lineage < initial_population_size; lineage++)
+    {// for each lineage, lineages never interact
+      SplittableRandom lineage_random = random_streams.lineageStream(lineage);
+      Bins bins = new Bins();
+      bins.add(0, GenomeStateTable.UNLABELLED_GENOME, 1);
+      newest_generation[lineage] = 0;
+
+      for(int current_time = 0; current_time < simulation_duration; current_time += time_interval)
+      {// at each time interval every cell divides
+        Bins daughter_bins = new Bins();
+        for(int bin = 0; bin < bins.size; bin++)
+        {
+          divideBin(bins.generations[bin] + 1, bins.states[bin], bins.counts[bin], daughter_bins, lineage_random);
+        }
+        for(int bin = 0; bin < daughter_bins.size; bin++)
+        {
+          output_writer.writeRecord(NO_CELL_ID, daughter_bins.generations[bin], lineage, daughter_bins.states[bin], daughter_bins.counts[bin]);
+          newest_generation[lineage] = Math.max(newest_generation[lineage], daughter_bins.generations[bin]);
+        }
+        bins = daughter_bins;
+      }// at each time interval
+    }// for each lineage
+  }// simulate
+
+  /**
+   * Divides every cell of a bin, adding the daughter cells to the next timestep's bins.
+   */
+  private void divideBin(int daughter_generation, int mother_state, long number_of_mothers, Bins daughter_bins, SplittableRandom random)
+  {
+    if(mother_state == genome_states.getFullyLabelledGenome())
+    {// Every daughter is fully labelled whatever the segregation
+      daughter_bins.add(daughter_generation, mother_state, 2 * number_of_mothers);
+      return;
+    }
+
+    // Replicate the mother genome, as in DivisionKernel.performSPhase, and find
+    // the pairs whose second chromosome differs between the daughters
+    final int genome_one = words_per_genome, genome_two = 2 * words_per_genome;
+    genome_states.copyWords(mother_state, genome_buffer, 0);
+    int number_of_relevant_pairs = 0;
+    for(int word = 0; word < words_per_genome; word++)
+    {
+      long mother_word = genome_buffer[word], strands_present = genome_word_masks[word];
+      genome_buffer[genome_one + word] = (mother_word & PackedDiploidGenome.FIRST_STRAND_MASK) | (PackedDiploidGenome.SECOND_STRAND_MASK & strands_present);
+      genome_buffer[genome_two + word] = (mother_word & PackedDiploidGenome.SECOND_STRAND_MASK) | (PackedDiploidGenome.FIRST_STRAND_MASK & strands_present);
+      long differing = (genome_buffer[genome_one + word] ^ genome_buffer[genome_two + word]) & PackedDiploidGenome.SECOND_CHROMOSOME_MASK;
+      while(differing != 0)
+      {// for each pair whose segregation matters
+        int homologous_pair = Long.numberOfTrailingZeros(differing) / PackedDiploidGenome.BITS_PER_PAIR;
+        if(number_of_relevant_pairs == relevant_pairs.length)
+        {
+          relevant_pairs = Arrays.copyOf(relevant_pairs, Math.max(8, number_of_relevant_pairs * 2));
+          relevant_pair_words = Arrays.copyOf(relevant_pair_words, relevant_pairs.length);
+        }
+        relevant_pairs[number_of_relevant_pairs] = PackedDiploidGenome.secondChromosomeMask(homologous_pair);
+        relevant_pair_words[number_of_relevant_pairs] = word;
+        number_of_relevant_pairs++;
+        differing &= ~relevant_pairs[number_of_relevant_pairs - 1];
+      }
+    }
+
+    // Split the mothers over the segregation outcomes one relevant pair at a
+    // time, each outcome holding its two daughter genomes
+    final int outcome_size = 2 * words_per_genome;
+    int number_of_outcomes = 1;
+    System.arraycopy(genome_buffer, genome_one, outcome_genomes, 0, outcome_size);
+    outcome_counts[0] = number_of_mothers;
+    for(int pair = 0; pair < number_of_relevant_pairs; pair++)
+    {
+      int outcomes_before_split = number_of_outcomes;
+      for(int outcome = 0; outcome < outcomes_before_split; outcome++)
+      {
+        long swapping = binomialHalf(outcome_counts[outcome], random);
+        if(swapping == 0)
+          continue;
+        int swapped_outcome = outcome;
+        if(swapping < outcome_counts[outcome])
+        {// Some mothers swap the pair, they form a new outcome
+          if(number_of_outcomes == outcome_counts.length)
+          {
+            outcome_counts = Arrays.copyOf(outcome_counts, number_of_outcomes * 2);
+            outcome_genomes = Arrays.copyOf(outcome_genomes, number_of_outcomes * 2 * outcome_size);
+          }
+          swapped_outcome = number_of_outcomes++;
+          System.arraycopy(outcome_genomes, outcome * outcome_size, outcome_genomes, swapped_outcome * outcome_size, outcome_size);
+          outcome_counts[swapped_outcome] = swapping;
+          outcome_counts[outcome] -= swapping;
+        }
+        int daughter_one_word = swapped_outcome * outcome_size + relevant_pair_words[pair];
+        long swapped_strands = (outcome_genomes[daughter_one_word] ^ outcome_genomes[daughter_one_word + words_per_genome]) & relevant_pairs[pair];
+        outcome_genomes[daughter_one_word] ^= swapped_strands;
+        outcome_genomes[daughter_one_word + words_per_genome] ^= swapped_strands;
+      }
+    }
+
+    for(int outcome = 0; outcome < number_of_outcomes; outcome++)
+    {// for each outcome that happened, add both daughters
+      int daughter_one = outcome * outcome_size, daughter_two = daughter_one + words_per_genome;
+      daughter_bins.add(daughter_generation, genome_states.intern(outcome_genomes, daughter_one), outcome_counts[outcome]);
+      daughter_bins.add(daughter_generation, genome_states.intern(outcome_genomes, daughter_two), outcome_counts[outcome]);
+    }
+  }// divideBin
+
+  /**
+   * Draws from Binomial(number_of_trials, 1/2) exactly, as the number of set bits among that many random bits.
+   */
+  static long binomialHalf(long number_of_trials, SplittableRandom random)
+  {
+    long successes = 0;
+    for(long remaining = number_of_trials; remaining > 0; remaining -= BITS_PER_WORD)
+    {
+      long bits = random.nextLong();
+      if(remaining < BITS_PER_WORD)
+        bits &= (1L << remaining) - 1;
+      successes += Long.bitCount(bits);
+    }
+    return successes;
+  }// binomialHalf
+}// HistogramEngine
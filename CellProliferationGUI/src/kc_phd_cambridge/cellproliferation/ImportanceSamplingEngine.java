@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/**
+ * Estimates the label distribution of each generation, tails included, by
+ * importance sampling single lines of descent.
+ *
+ * A cell drawn at random from generation g of a lineage is the end of a line
+ * of descent that follows one daughter, chosen with p = 0.5, at each of g
+ * divisions. Along the line, the unlabelled template strands of the first
+ * chromosomes are all kept or all lost together, and those of each second
+ * chromosome are kept with p = 0.5 at every division independently, so a cell
+ * keeping much of its unlabelled DNA at a high generation is far too rare for
+ * unbiased lines to reach.
+ *
+ * Each line is therefore drawn from a mixture that keeps template strands
+ * together. When the line starts, each homologous pair is guided with
+ * probability SimulationData.getImportanceBias(): the swap of its second
+ * chromosome is then always made, by DivisionKernel.performGuidedSPhase, so
+ * that the chromosome's template strand stays in the followed cell. The line
+ * itself is guided with probability SimulationData.getDescentBias() to always
+ * follow the daughter keeping the first chromosomes' template strands. Other
+ * pairs and lines are left to chance.
+ *
+ * At generation g an unguided template strand is still kept with probability
+ * 2^(1-g). Under the mixture it is kept with probability b + (1 - b)2^(1-g)
+ * and lost with probability (1 - b)(1 - 2^(1-g)), b being the bias, and the
+ * weight of the followed cell is the product, over the first chromosomes and
+ * every second chromosome, of the probabilities of what it kept and lost when
+ * unbiased over those under the mixture. Every factor is at most 1 / (1 - b),
+ * so the weights stay bounded. With biases that make the tail of interest
+ * common, e.g. guiding the line and about as many pairs as the tail needs to
+ * keep, its probability comes out with a small relative error from a number
+ * of lines that unbiased sampling would not see a single tail cell in.
+ *
+ * SimulationData.getSampledPaths() lines are drawn per lineage. At every
+ * generation each line writes a record for its cell, weighted by its
+ * likelihood ratio times 2^g over the number of lines, so that the weights of
+ * a generation add up to an estimate of its number of cells.
+ *
+ * @see kc_phd_cambridge.cellproliferation.DivisionKernel
+ * @see kc_phd_cambridge.cellproliferation.SimulationEngine
+ * @author Kyata Chibalabala
+ */
+public class ImportanceSamplingEngine implements SimulationEngine
+{
+  // Instance variables
+  private final int haploid_number, initial_population_size, simulation_duration, time_interval, sampled_paths;
+  private final double importance_bias, descent_bias;
+  private final GenomeStateTable genome_states;
+  private final DivisionKernel division_kernel;
+  private final RandomStreams random_streams;
+  private final long[] genome_buffer; // Scratch space for the genome of the followed cell
+
+  /**
+   * Constructor.
+   *
+   * @param input_parameters the parameters of the run, including the number of lines and their biases.
+   * @param karyotype the chromosome sizes of the simulated organism.
+   * @param new_genome_states the genome states of the run.
+   * @param random_streams the random number streams of the run, each lineage uses its own stream.
+   */
+  public ImportanceSamplingEngine(SimulationData input_parameters, KaryotypeTable karyotype, GenomeStateTable new_genome_states,
+      RandomStreams random_streams)
+  {
+    this.haploid_number = karyotype.getHaploidNumber();
+    this.initial_population_size = input_parameters.getInitialPopulationSize();
+    this.simulation_duration = input_parameters.getSimulationDuration();
+    this.time_interval = input_parameters.getTimeInterval();
+    this.sampled_paths = input_parameters.getSampledPaths();
+    this.importance_bias = input_parameters.getImportanceBias();
+    this.descent_bias = input_parameters.getDescentBias();
+    this.genome_states = new_genome_states;
+    this.division_kernel = new DivisionKernel(karyotype, new_genome_states);
+    this.random_streams = random_streams;
+    this.genome_buffer = new long[new_genome_states.getWordsPerGenome()];
+  }// Constructor
+
+  @Override
+  public void simulate(RecordWriter output_writer, int[] newest_generation) throws IOException
+  {
+    final int number_of_generations = (simulation_duration + time_interval - 1) / time_interval;
+    long[] guided_pairs = new long[genome_buffer.length];
+
+    for(int lineage = 0; lineage < initial_population_size; lineage++)
+    {// for each lineage, lineages never interact
+      SplittableRandom lineage_random = random_streams.lineageStream(lineage);
+      newest_generation[lineage] = number_of_generations;
+
+      for(int path = 0; path < sampled_paths; path++)
+      {// for each line of descent
+        for(int word = 0; word < guided_pairs.length; word++)
+        {
+          guided_pairs[word] = 0L;
+        }
+        for(int homologous_pair = 0; homologous_pair < haploid_number; homologous_pair++)
+        {
+          if(lineage_random.nextDouble() < importance_bias)
+            guided_pairs[homologous_pair / PackedDiploidGenome.PAIRS_PER_WORD] |= 1L << (PackedDiploidGenome.BITS_PER_PAIR * (homologous_pair % PackedDiploidGenome.PAIRS_PER_WORD));
+        }
+        boolean descent_guided = lineage_random.nextDouble() < descent_bias;
+
+        CellPopulation path_cells = new HeapCellPopulation(haploid_number, number_of_generations + 1);
+        int followed_cell = path_cells.append(HistogramEngine.NO_CELL_ID, lineage, 0);
+        double cells_per_path = 1.0 / sampled_paths;
+        for(int generation = 1; generation <= number_of_generations; generation++)
+        {
+          // Daughter cell one receives the first strand of every first chromosome
+          genome_states.copyWords(path_cells.getGenomeState(followed_cell), genome_buffer, 0);
+          boolean first_strand_unlabelled = !PackedDiploidGenome.isStrandLabelled(genome_buffer, 0, 0, 0, 0);
+          boolean second_strand_unlabelled = !PackedDiploidGenome.isStrandLabelled(genome_buffer, 0, 0, 0, 1);
+          boolean follow_daughter_two = descent_guided && first_strand_unlabelled != second_strand_unlabelled ? second_strand_unlabelled : lineage_random.nextDouble() >= 0.5;
+
+          path_cells.setGeneration(followed_cell, generation);
+          int other_daughter = path_cells.append(HistogramEngine.NO_CELL_ID, lineage, generation);
+          division_kernel.performGuidedSPhase(path_cells, followed_cell, other_daughter, lineage_random, guided_pairs, follow_daughter_two);
+          if(follow_daughter_two)
+            followed_cell = other_daughter;
+
+          cells_per_path *= 2;
+          output_writer.writeRecord(HistogramEngine.NO_CELL_ID, generation, lineage, path_cells.getGenomeState(followed_cell), cells_per_path * likelihoodRatio(path_cells.getGenomeState(followed_cell), generation));
+        }
+      }// for each line of descent
+    }// for each lineage
+  }// simulate
+
+  /**
+   * Returns the probability of the template strands a cell of the given
+   * generation kept and lost when unbiased over that under the mixture.
+   */
+  private double likelihoodRatio(int genome_state, int generation)
+  {
+    final double probability_kept = Math.pow(0.5, generation - 1);
+    genome_states.copyWords(genome_state, genome_buffer, 0);
+
+    double likelihood_ratio = mixtureRatio(isTemplateKept(0, 0), probability_kept, descent_bias);
+    for(int homologous_pair = 0; homologous_pair < haploid_number; homologous_pair++)
+    {
+      likelihood_ratio *= mixtureRatio(isTemplateKept(homologous_pair, 1), probability_kept, importance_bias);
+    }
+    return likelihood_ratio;
+  }// likelihoodRatio
+
+  private boolean isTemplateKept(int homologous_pair, int chromosome)
+  {
+    return !PackedDiploidGenome.isStrandLabelled(genome_buffer, 0, homologous_pair, chromosome, 0)
+        || !PackedDiploidGenome.isStrandLabelled(genome_buffer, 0, homologous_pair, chromosome, 1);
+  }// isTemplateKept
+
+  private static double mixtureRatio(boolean kept, double probability_kept, double bias)
+  {
+    return kept ? probability_kept / (bias + (1.0 - bias) * probability_kept) : 1.0 / (1.0 - bias);
+  }// mixtureRatio
+}// ImportanceSamplingEngine
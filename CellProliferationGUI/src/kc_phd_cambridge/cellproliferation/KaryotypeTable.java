@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable table of chromosome sizes for one organism and sex.
+ *
+ * The comma separated chromosome sizes provided by GenomeData are parsed once,
+ * when the table is built, into the size of every homologous chromosome and the
+ * total number of bases in the diploid genome (both DNA strands of every
+ * chromosome). A size is also kept for every bit position of a packed genome so
+ * that the labelled bases of a cell can be summed straight from its packed
+ * words without any parsing or allocation.
+ *
+ * Tables are cached per (organism, sex) and the cache is cleared whenever a new
+ * genome data file is imported.
+ *
+ * @see kc_phd_cambridge.cellproliferation.GenomeData
+ * @see kc_phd_cambridge.cellproliferation.PackedDiploidGenome
+ * @author Kyata Chibalabala
+ */
+public class KaryotypeTable
+{
+  // Class variables, shared by all simulations of the same organism and sex
+  private static final Map<String, KaryotypeTable> karyotype_tables = new ConcurrentHashMap<>();
+  private static final int BITS_PER_WORD = 64;
+
+  // Instance variables
+  private final int haploid_number;
+  private final long[] homolog_sizes; // The size of each chromosome, indexed homologous_pair*2 + chromosome
+  private final long[] strand_sizes; // The size of the chromosome a packed genome bit belongs to, indexed word*64 + bit
+  private final long[] word_masks; // The strands present in each word of a packed genome
+  private final long total_number_of_bases_in_genome;
+
+  /**
+   * Constructor, parses the chromosome sizes of one organism and sex.
+   *
+   * @param genome_data_subset the chromosome sizes, one "size,size" string per homologous pair.
+   */
+  private KaryotypeTable(List<String> genome_data_subset)
+  {
+    this.haploid_number = genome_data_subset.size();
+    this.homolog_sizes = new long[haploid_number * 2];
+    this.strand_sizes = new long[PackedDiploidGenome.wordsPerGenome(haploid_number) * BITS_PER_WORD];
+    this.word_masks = new long[PackedDiploidGenome.wordsPerGenome(haploid_number)];
+    for(int word = 0; word < word_masks.length; word++)
+    {
+      word_masks[word] = PackedDiploidGenome.wordMask(haploid_number, word);
+    }
+
+    long number_of_bases_in_genome = 0;
+    for(int homologous_pair_count = 0; homologous_pair_count < haploid_number; homologous_pair_count++)
+    {// For each homologous pair
+      String[] split_chromosome_sizes = genome_data_subset.get(homologous_pair_count).split(",");
+      for(int chromosome_count = 0; chromosome_count < 2; chromosome_count++)
+      {// For each chromosome in a homologous pair
+        long chromosome_size = Long.parseLong(split_chromosome_sizes[chromosome_count]);
+        homolog_sizes[homologous_pair_count * 2 + chromosome_count] = chromosome_size;
+
+        // The size of each chromosome in bases = the chromosome size (base pairs) x 2
+        number_of_bases_in_genome += chromosome_size * 2;
+
+        int first_strand_bit = (homologous_pair_count / PackedDiploidGenome.PAIRS_PER_WORD) * BITS_PER_WORD
+            + (homologous_pair_count % PackedDiploidGenome.PAIRS_PER_WORD) * PackedDiploidGenome.BITS_PER_PAIR + chromosome_count * 2;
+        strand_sizes[first_strand_bit] = chromosome_size;
+        strand_sizes[first_strand_bit + 1] = chromosome_size;
+      }// For each chromosome in a homologous pair
+    }// For each homologous pair
+    this.total_number_of_bases_in_genome = number_of_bases_in_genome;
+  }// Constructor
+
+  /**
+   * Provides the karyotype table of an organism and sex, building it on first use.
+   *
+   * @param target_organism the string value representing the organism.
+   * @param sex integer value for sex, XX (female) or XY (male).
+   * @return the karyotype table.
+   */
+  public static KaryotypeTable getKaryotypeTable(String target_organism, int sex)
+  {
+    return karyotype_tables.computeIfAbsent(target_organism + "," + sex,
+        (String key) -> new KaryotypeTable(GenomeData.getGenomeData(target_organism, sex)));
+  }// getKaryotypeTable
+
+  /**
+   * Discards all cached tables, called when a new genome data file is imported.
+   */
+  static void clearCache()
+  {
+    karyotype_tables.clear();
+  }// clearCache
+
+  /**
+   * Sums the labelled bases of a genome stored in a packed genome array.
+   *
+   * Only the unlabelled strands are visited, which after the first few
+   * generations are a small minority of the genome.
+   *
+   * @param genomes the packed genome array.
+   * @param offset the index of the genome's first word.
+   * @return the number of labelled bases in the genome.
+   */
+  public long labelledBases(long[] genomes, int offset)
+  {
+    long unlabelled_bases = 0;
+    for(int word = 0; word < word_masks.length; word++)
+    {// For each word of the packed genome
+      unlabelled_bases += strandBases(word, ~genomes[offset + word] & word_masks[word]);
+    }
+    return total_number_of_bases_in_genome - unlabelled_bases;
+  }// labelledBases
+
+  /**
+   * Sums the bases on a set of strands within one word of a packed genome.
+   *
+   * The cost is proportional to the number of strands selected, not to the
+   * haploid number, which keeps incremental label updates cheap.
+   *
+   * @param word the index of the word within the packed genome.
+   * @param strands the bits of the strands to sum.
+   * @return the number of bases on the selected strands.
+   */
+  public long strandBases(int word, long strands)
+  {
+    long bases = 0;
+    while(strands != 0)
+    {// For each selected strand
+      bases += strand_sizes[word * BITS_PER_WORD + Long.numberOfTrailingZeros(strands)];
+      strands &= strands - 1;
+    }
+    return bases;
+  }// strandBases
+
+  /**
+   * Converts a number of labelled bases to the percentage of the genome labelled.
+   *
+   * @param labelled_bases the number of labelled bases in a genome.
+   * @return the percentage of the genome that is labelled.
+   */
+  public double percentageLabelled(long labelled_bases)
+  {
+    return (labelled_bases/(double)total_number_of_bases_in_genome)*100;
+  }// percentageLabelled
+
+  //*** Access methods ***//
+
+  /**
+   * Provides read access to the haploid number of this karyotype
+   *
+   * @return the haploid number.
+   */
+  public int getHaploidNumber()
+  {
+    return this.haploid_number;
+  }// getHaploidNumber
+
+  /**
+   * Provides read access to the size of one chromosome
+   *
+   * @param homologous_pair the homologous pair of the chromosome.
+   * @param chromosome the chromosome (0 or 1) within the pair.
+   * @return the size of the chromosome in base pairs.
+   */
+  public long getHomologSize(int homologous_pair, int chromosome)
+  {
+    return homolog_sizes[homologous_pair * 2 + chromosome];
+  }// getHomologSize
+
+  /**
+   * Provides read access to the size of the chromosome a packed genome bit belongs to
+   *
+   * @param word the index of the word within the packed genome.
+   * @param bit the bit position within the word.
+   * @return the size of the chromosome in base pairs, 0 for unused bits.
+   */
+  public long getStrandSize(int word, int bit)
+  {
+    return strand_sizes[word * BITS_PER_WORD + bit];
+  }// getStrandSize
+
+  /**
+   * Provides read access to the number of bases in the diploid genome
+   *
+   * @return the total number of bases on both strands of every chromosome.
+   */
+  public long getTotalBases()
+  {
+    return this.total_number_of_bases_in_genome;
+  }// getTotalBases
+}// KaryotypeTable
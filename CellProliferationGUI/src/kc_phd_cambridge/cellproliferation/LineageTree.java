@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.Arrays;
+
+/**
+ * Record of every division in a simulation, stored as a tree of cell lifetimes.
+ *
+ * A node stands for one cell from its birth to its division. Founder cells are
+ * roots and every division adds two consecutive nodes, one per daughter cell,
+ * whose parent is the mother cell's node. Rather than node objects the tree
+ * keeps two primitive columns, the parent node index and the birth time, so a
+ * division costs 16 bytes and a tree of 10^8 divisions fits in about 1.6GB.
+ * Columns grow in fixed size chunks and are never copied as the tree grows.
+ *
+ * The tree also follows which node each cell of the population currently
+ * belongs to, so that at the end of a run the final population's cells can be
+ * traced back to their founders. Subtrees can be materialised as
+ * BinaryTreeNode objects for analyses that prefer to walk linked nodes.
+ *
+ * @see kc_phd_cambridge.cellproliferation.BinaryTreeNode
+ * @author Kyata Chibalabala
+ */
+public class LineageTree
+{
+  // Class variables
+  public static final int NO_PARENT = -1; // The parent of a founder cell's node
+  private static final int CHUNK_SHIFT = 20, NODES_PER_CHUNK = 1 << CHUNK_SHIFT;
+
+  /**
+   * A node of a materialised subtree.
+   */
+  public static final class Node extends BinaryTreeNode<Node>
+  {
+    private final int node_index;
+    private final float birth_time;
+
+    private Node(int new_node_index, float new_birth_time)
+    {
+      this.node_index = new_node_index;
+      this.birth_time = new_birth_time;
+    }
+
+    /**
+     * Provides read access to the index of this node in its LineageTree
+     *
+     * @return the node index.
+     */
+    public int getNodeIndex()
+    {
+      return this.node_index;
+    }// getNodeIndex
+
+    /**
+     * Provides read access to the time the cell of this node was born
+     *
+     * @return the birth time.
+     */
+    public float getBirthTime()
+    {
+      return this.birth_time;
+    }// getBirthTime
+  }// Node
+
+  // Instance variables
+  private int[][] parents = new int[0][];
+  private float[][] birth_times = new float[0][];
+  private int[][] cell_nodes = new int[0][]; // The current node of each cell, indexed by population index
+  private int number_of_nodes = 0, number_of_cells = 0, number_of_founders = 0;
+
+  /**
+   * Adds a founder cell to the tree, founders must be added before any division.
+   *
+   * @param birth_time the time the founder cell enters the simulation.
+   * @return the index of the founder's node.
+   */
+  public int addFounder(float birth_time)
+  {
+    if(number_of_nodes != number_of_founders)
+      throw new IllegalStateException("Founder cells must be added before the first division");
+    int node = addNode(NO_PARENT, birth_time);
+    addCell(node);
+    number_of_founders++;
+    return node;
+  }// addFounder
+
+  /**
+   * Records the division of a cell into daughter cell one, which keeps the
+   * mother's population index, and daughter cell two, just appended to the population.
+   *
+   * @param mother_cell_index the population index of the mother cell and daughter cell one.
+   * @param daughter_cell_two_index the population index of daughter cell two.
+   * @param birth_time the time the daughter cells were born.
+   */
+  public void recordDivision(int mother_cell_index, int daughter_cell_two_index, float birth_time)
+  {
+    int mother_node = getCellNode(mother_cell_index);
+    int daughter_node_one = addNode(mother_node, birth_time);
+    int daughter_node_two = addNode(mother_node, birth_time);
+    setCellNode(mother_cell_index, daughter_node_one);
+    while(number_of_cells <= daughter_cell_two_index)
+    {// Daughter cell two is new to the population
+      addCell(NO_PARENT);
+    }
+    setCellNode(daughter_cell_two_index, daughter_node_two);
+  }// recordDivision
+
+  /**
+   * Makes room for a run of divisions whose nodes are then filled in, possibly
+   * concurrently, with setDivision. Division r of the run owns nodes
+   * first_node + 2r and first_node + 2r + 1, the same nodes it would receive
+   * from recordDivision if the divisions were recorded in order.
+   *
+   * @param number_of_divisions the number of divisions in the run.
+   * @param new_population_size the size of the population after the divisions.
+   * @return the first node of the run.
+   */
+  public int reserveDivisions(int number_of_divisions, int new_population_size)
+  {
+    int first_node = number_of_nodes;
+    int new_number_of_nodes = nodeCountAfter(2L * number_of_divisions);
+    ensureNodeCapacity(new_number_of_nodes);
+    number_of_nodes = new_number_of_nodes;
+    while(number_of_cells < new_population_size)
+    {
+      addCell(NO_PARENT);
+    }
+    return first_node;
+  }// reserveDivisions
+
+  /**
+   * Fills in the nodes of a division reserved with reserveDivisions.
+   *
+   * @param daughter_node_one the first of the division's two nodes.
+   * @param mother_cell_index the population index of the mother cell and daughter cell one.
+   * @param daughter_cell_two_index the population index of daughter cell two.
+   * @param birth_time the time the daughter cells were born.
+   */
+  public void setDivision(int daughter_node_one, int mother_cell_index, int daughter_cell_two_index, float birth_time)
+  {
+    int mother_node = getCellNode(mother_cell_index);
+    setNode(daughter_node_one, mother_node, birth_time);
+    setNode(daughter_node_one + 1, mother_node, birth_time);
+    setCellNode(mother_cell_index, daughter_node_one);
+    setCellNode(daughter_cell_two_index, daughter_node_one + 1);
+  }// setDivision
+
+  private int addNode(int parent, float birth_time)
+  {
+    int node = number_of_nodes;
+    int new_number_of_nodes = nodeCountAfter(1);
+    ensureNodeCapacity(new_number_of_nodes);
+    setNode(node, parent, birth_time);
+    number_of_nodes = new_number_of_nodes;
+    return node;
+  }// addNode
+
+  /**
+   * Provides the number of nodes once more are added, nodes are indexed by int.
+   *
+   * @throws IllegalStateException if the tree would grow beyond Integer.MAX_VALUE nodes.
+   */
+  private int nodeCountAfter(long added_nodes)
+  {
+    long new_number_of_nodes = number_of_nodes + added_nodes;
+    if(new_number_of_nodes > Integer.MAX_VALUE)
+      throw new IllegalStateException("The lineage tree can not hold more than " + Integer.MAX_VALUE + " nodes, the run is too long for its tree to be recorded");
+    return (int)new_number_of_nodes;
+  }// nodeCountAfter
+
+  private void ensureNodeCapacity(int required_capacity)
+  {
+    while(((long)parents.length << CHUNK_SHIFT) < required_capacity)
+    {// Current chunks are full
+      parents = Arrays.copyOf(parents, parents.length + 1);
+      birth_times = Arrays.copyOf(birth_times, birth_times.length + 1);
+      parents[parents.length - 1] = new int[NODES_PER_CHUNK];
+      birth_times[birth_times.length - 1] = new float[NODES_PER_CHUNK];
+    }
+  }// ensureNodeCapacity
+
+  private void setNode(int node, int parent, float birth_time)
+  {
+    parents[node >>> CHUNK_SHIFT][node & (NODES_PER_CHUNK - 1)] = parent;
+    birth_times[node >>> CHUNK_SHIFT][node & (NODES_PER_CHUNK - 1)] = birth_time;
+  }// setNode
+
+  private void addCell(int node)
+  {
+    if((number_of_cells >>> CHUNK_SHIFT) == cell_nodes.length)
+    {// Current chunks are full
+      cell_nodes = Arrays.copyOf(cell_nodes, cell_nodes.length + 1);
+      cell_nodes[cell_nodes.length - 1] = new int[NODES_PER_CHUNK];
+    }
+    setCellNode(number_of_cells, node);
+    number_of_cells++;
+  }// addCell
+
+  private void setCellNode(int cell_index, int node)
+  {
+    cell_nodes[cell_index >>> CHUNK_SHIFT][cell_index & (NODES_PER_CHUNK - 1)] = node;
+  }// setCellNode
+
+  /**
+   * Builds linked nodes for the subtree below a node, e.g. the whole lineage
+   * of a founder. Children always follow their parent in the tree, so a single
+   * pass over the later nodes finds every descendant.
+   *
+   * @param root_node the index of the subtree's root.
+   * @return the materialised root node.
+   */
+  public Node getSubtree(int root_node)
+  {
+    Node[] materialised = new Node[number_of_nodes - root_node];
+    materialised[0] = new Node(root_node, getBirthTime(root_node));
+    for(int node = root_node + 1; node < number_of_nodes; node++)
+    {// For each node that could descend from the root
+      int parent = getParent(node);
+      if(parent >= root_node && materialised[parent - root_node] != null)
+      {// Parent is part of the subtree
+        materialised[node - root_node] = new Node(node, getBirthTime(node));
+        materialised[parent - root_node].addChild(materialised[node - root_node]);
+      }
+    }
+    return materialised[0];
+  }// getSubtree
+
+  //*** Access methods ***//
+
+  /**
+   * Provides read access to the parent of a node
+   *
+   * @param node the index of the node.
+   * @return the index of the parent node, NO_PARENT for a founder.
+   */
+  public int getParent(int node)
+  {
+    return parents[node >>> CHUNK_SHIFT][node & (NODES_PER_CHUNK - 1)];
+  }// getParent
+
+  /**
+   * Provides read access to the time the cell of a node was born
+   *
+   * @param node the index of the node.
+   * @return the birth time.
+   */
+  public float getBirthTime(int node)
+  {
+    return birth_times[node >>> CHUNK_SHIFT][node & (NODES_PER_CHUNK - 1)];
+  }// getBirthTime
+
+  /**
+   * Provides read access to the node a cell of the population currently belongs to
+   *
+   * @param cell_index the index of the cell in the population.
+   * @return the index of the cell's node, a leaf of the tree.
+   */
+  public int getCellNode(int cell_index)
+  {
+    return cell_nodes[cell_index >>> CHUNK_SHIFT][cell_index & (NODES_PER_CHUNK - 1)];
+  }// getCellNode
+
+  /**
+   * Provides read access to the number of nodes in the tree
+   *
+   * @return the number of founders plus two nodes per division.
+   */
+  public int size()
+  {
+    return this.number_of_nodes;
+  }// size
+
+  /**
+   * Provides read access to the number of founder cells, whose nodes are the first in the tree
+   *
+   * @return the number of roots.
+   */
+  public int getNumberOfFounders()
+  {
+    return this.number_of_founders;
+  }// getNumberOfFounders
+}// LineageTree
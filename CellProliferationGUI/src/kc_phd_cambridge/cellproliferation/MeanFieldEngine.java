@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the expected labelled percentage of each generation and its
+ * variance, without simulating any cell.
+ *
+ * Each chromosome is followed through the replication and segregation rules
+ * of performSPhase. A founder's chromosomes hold two unlabelled template
+ * strands; after the first division each daughter holds one template strand
+ * of every chromosome, and from then on the copy carrying a template strand
+ * goes to a given daughter with probability 1/2. The chance r that a cell of
+ * the generation picked at random carries a chromosome's template strand thus
+ * follows r(1) = 1, r(g+1) = r(g)/2, the same for every chromosome. First
+ * chromosomes are never swapped and all follow the same daughter, so their
+ * template strands are perfectly correlated; second chromosomes are swapped
+ * independently. With U the unlabelled bases of the cell,
+ *
+ *  E[U]   = r (sum of all chromosome sizes)
+ *  Var[U] = r (1 - r) ((sum of first chromosome sizes)^2 + sum of squared second chromosome sizes)
+ *
+ * computed in O(generations x haploid number). The means are written in the
+ * format of the "Final Label Percentages" file of DataAnalysis, and the means
+ * and variances of the labelled percentage to a "Label Moments" file.
+ *
+ * @see kc_phd_cambridge.cellproliferation.SimulationEngine
+ * @author Kyata Chibalabala
+ */
+public class MeanFieldEngine implements SimulationEngine
+{
+  // Instance variables
+  private final KaryotypeTable karyotype;
+  private final String results_name;
+  private final int initial_population_size, number_of_generations;
+
+  /**
+   * Constructor.
+   *
+   * @param input_parameters the parameters of the run.
+   * @param new_karyotype the chromosome sizes of the simulated organism.
+   */
+  public MeanFieldEngine(SimulationData input_parameters, KaryotypeTable new_karyotype)
+  {
+    this.karyotype = new_karyotype;
+    this.results_name = input_parameters.toString();
+    this.initial_population_size = input_parameters.getInitialPopulationSize();
+    this.number_of_generations = (input_parameters.getSimulationDuration() + input_parameters.getTimeInterval() - 1) / input_parameters.getTimeInterval();
+  }// Constructor
+
+  @Override
+  public void simulate(RecordWriter output_writer, int[] newest_generation)
+  {
+    double[] means = new double[number_of_generations + 1], variances = new double[number_of_generations + 1];
+    double total_bases = karyotype.getTotalBases();
+    double template_retention = 1; // r, the chance a random cell of the generation carries a chromosome's template strand
+
+    for(int generation = 1; generation <= number_of_generations; generation++)
+    {// for each generation after the founders, which are unlabelled
+      double expected_unlabelled_bases = 0, first_chromosome_bases = 0, squared_second_chromosome_bases = 0;
+      for(int homologous_pair = 0; homologous_pair < karyotype.getHaploidNumber(); homologous_pair++)
+      {// for each homologous pair, one template strand per chromosome
+        double first_size = karyotype.getHomologSize(homologous_pair, 0), second_size = karyotype.getHomologSize(homologous_pair, 1);
+        expected_unlabelled_bases += template_retention * (first_size + second_size);
+        first_chromosome_bases += first_size;
+        squared_second_chromosome_bases += second_size * second_size;
+      }
+      double unlabelled_variance = template_retention * (1 - template_retention) * (first_chromosome_bases * first_chromosome_bases + squared_second_chromosome_bases);
+      means[generation] = (total_bases - expected_unlabelled_bases) / total_bases * 100;
+      variances[generation] = unlabelled_variance * (100 / total_bases) * (100 / total_bases);
+      template_retention /= 2;
+    }
+
+    List<String> final_generation_to_output = new ArrayList<>();
+    List<String> moments_to_output = new ArrayList<>();
+    for(int lineage = 0; lineage < initial_population_size; lineage++)
+    {// every lineage has the same moments
+      final_generation_to_output.add("LINEAGE," + lineage);
+      moments_to_output.add("LINEAGE," + lineage);
+      for(int generation = 0; generation <= number_of_generations; generation++)
+      {
+        final_generation_to_output.add("GENERATION," + generation + "," + Double.toString(means[generation]));
+        moments_to_output.add("GENERATION," + generation + "," + Double.toString(means[generation]) + "," + Double.toString(variances[generation]));
+      }
+      newest_generation[lineage] = number_of_generations;
+    }
+    DataAnalysis.writeToFile(final_generation_to_output, "Final Label Percentages - " + results_name + ".csv");
+    DataAnalysis.writeToFile(moments_to_output, "Label Moments - " + results_name + ".csv");
+  }// simulate
+
+  @Override
+  public boolean writesRecords()
+  {
+    return false;
+  }// writesRecords
+}// MeanFieldEngine
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Cell population stored outside the Java heap.
+ *
+ * Cell records are kept in direct ByteBuffers, so a population of hundreds of
+ * millions of cells adds nothing to the garbage collected heap and is never
+ * copied as it grows: a new chunk is added when the last one is full.
+ *
+ * The chunks belong to the run that created the population and their native
+ * memory is freed by close(), through the JDK's internal buffer cleaner, so a
+ * sequence of large runs does not wait on garbage collection to reclaim it.
+ * On a JVM whose cleaner can not be reached the buffers are only let go, and
+ * their memory is returned once they are collected. Direct memory is limited
+ * by the JVM option -XX:MaxDirectMemorySize, which defaults to the maximum 
+ * heap size.
+ *
+ * @see kc_phd_cambridge.cellproliferation.ChunkedCellPopulation
+ * @author Kyata Chibalabala
+ */
+public class OffHeapCellPopulation extends ChunkedCellPopulation
+{
+  // Instance variables
+  private ByteBuffer[] chunks = new ByteBuffer[0];
+
+  /**
+   * Constructor.
+   *
+   * @param new_haploid_number the haploid number of the organism whose cells are stored.
+   */
+  public OffHeapCellPopulation(int new_haploid_number)
+  {
+    super(new_haploid_number);
+  }// Constructor
+
+  @Override
+  protected ByteBuffer chunk(int chunk_index)
+  {
+    if(chunk_index == chunks.length)
+    {// The last chunk is full
+      chunks = Arrays.copyOf(chunks, chunks.length + 1);
+      chunks[chunk_index] = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder());
+    }
+    return chunks[chunk_index];
+  }// chunk
+
+  /**
+   * Frees the native memory of every chunk, the population is empty afterwards.
+   */
+  @Override
+  public void close()
+  {
+    ByteBuffer[] closed_chunks = chunks;
+    chunks = new ByteBuffer[0];
+    size = 0;
+    for(ByteBuffer closed_chunk: closed_chunks)
+    {
+      freeBuffer(closed_chunk);
+    }
+  }// close
+}// OffHeapCellPopulation
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.Arrays;
+
+/**
+ * Bit-packed representation of a diploid genome.
+ *
+ * Every DNA strand in the genome is either fully labelled or unlabelled, so a
+ * strand is stored as a single bit (1 = labelled, 0 = unlabelled). The four
+ * strands of a homologous pair occupy one nibble of a long:
+ *
+ *  bit 4p + 0   chromosome one, DNA strand one
+ *  bit 4p + 1   chromosome one, DNA strand two
+ *  bit 4p + 2   chromosome two, DNA strand one
+ *  bit 4p + 3   chromosome two, DNA strand two
+ *
+ * where p is the index of the homologous pair within its word, so each long
+ * holds 16 homologous pairs and a human genome (haploid number 23) fits in two
+ * longs. The masks below select the same strand or chromosome of every pair in
+ * a word, allowing S-phase to replicate and segregate all pairs of a word with
+ * a handful of bitwise operations.
+ *
+ * @author Kyata Chibalabala
+ */
+public class PackedDiploidGenome
+{
+  // Class variables
+  public static final int PAIRS_PER_WORD = 16, BITS_PER_PAIR = 4;
+  public static final long FIRST_STRAND_MASK = 0x5555555555555555L; // DNA strand one of every chromosome
+  public static final long SECOND_STRAND_MASK = 0xAAAAAAAAAAAAAAAAL; // DNA strand two of every chromosome
+  public static final long SECOND_CHROMOSOME_MASK = 0xCCCCCCCCCCCCCCCCL; // Both strands of the second chromosome of every pair
+  private static final long PAIR_MASK = 0xFL, SECOND_CHROMOSOME_OF_PAIR = 0xCL;
+
+  // Instance variables
+  private final int haploid_number;
+  private final long[] words;
+
+  /**
+   * Constructor, creates an unlabelled genome.
+   *
+   * @param new_haploid_number the integer value of target organism's haploid number
+   */
+  public PackedDiploidGenome(int new_haploid_number)
+  {
+    this.haploid_number = new_haploid_number;
+    this.words = new long[wordsPerGenome(new_haploid_number)];
+  }// Constructor
+
+  /**
+   * Constructor, copies a genome out of a packed genome array.
+   *
+   * @param new_haploid_number the integer value of target organism's haploid number
+   * @param source the array holding the packed genome
+   * @param offset the index of the genome's first word in the source array
+   */
+  public PackedDiploidGenome(int new_haploid_number, long[] source, int offset)
+  {
+    this.haploid_number = new_haploid_number;
+    this.words = Arrays.copyOfRange(source, offset, offset + wordsPerGenome(new_haploid_number));
+  }// Constructor
+
+  //*** Packed genome helpers ***//
+
+  /**
+   * Returns the number of longs needed to store a diploid genome.
+   *
+   * @param haploid_number the haploid number of the organism.
+   * @return the number of words per genome.
+   */
+  public static int wordsPerGenome(int haploid_number)
+  {
+    return (haploid_number + PAIRS_PER_WORD - 1) / PAIRS_PER_WORD;
+  }// wordsPerGenome
+
+  /**
+   * Returns a mask selecting every strand that exists in one word of a genome.
+   *
+   * All words are full except the last, whose high nibbles are not used when
+   * the haploid number is not a multiple of 16.
+   *
+   * @param haploid_number the haploid number of the organism.
+   * @param word the index of the word within the genome.
+   * @return the mask of strands present in the word.
+   */
+  public static long wordMask(int haploid_number, int word)
+  {
+    int pairs_in_word = Math.min(PAIRS_PER_WORD, haploid_number - word * PAIRS_PER_WORD);
+    return pairs_in_word == PAIRS_PER_WORD ? -1L : (1L << (pairs_in_word * BITS_PER_PAIR)) - 1;
+  }// wordMask
+
+  /**
+   * Returns the bit that selects both strands of the second chromosome of a homologous pair.
+   *
+   * @param homologous_pair the index of the homologous pair.
+   * @return the swap mask of the pair within its word.
+   */
+  public static long secondChromosomeMask(int homologous_pair)
+  {
+    return SECOND_CHROMOSOME_OF_PAIR << ((homologous_pair % PAIRS_PER_WORD) * BITS_PER_PAIR);
+  }// secondChromosomeMask
+
+  /**
+   * Returns the position of a DNA strand within its word.
+   */
+  private static int strandBit(int homologous_pair, int chromosome, int dna_strand)
+  {
+    return (homologous_pair % PAIRS_PER_WORD) * BITS_PER_PAIR + chromosome * 2 + dna_strand;
+  }// strandBit
+
+  /**
+   * Tests whether a DNA strand of a genome stored in a packed genome array is labelled.
+   *
+   * @param genomes the packed genome array.
+   * @param offset the index of the genome's first word.
+   * @param homologous_pair the homologous pair of the strand.
+   * @param chromosome the chromosome (0 or 1) of the strand within the pair.
+   * @param dna_strand the DNA strand (0 or 1) of the chromosome.
+   * @return true if the strand is labelled.
+   */
+  public static boolean isStrandLabelled(long[] genomes, int offset, int homologous_pair, int chromosome, int dna_strand)
+  {
+    long word = genomes[offset + homologous_pair / PAIRS_PER_WORD];
+    return ((word >>> strandBit(homologous_pair, chromosome, dna_strand)) & 1L) != 0;
+  }// isStrandLabelled
+
+  //*** Access methods ***//
+
+  /**
+   * Provides read access to the label status of a single DNA strand
+   *
+   * @param homologous_pair the homologous pair of the strand.
+   * @param chromosome the chromosome (0 or 1) of the strand within the pair.
+   * @param dna_strand the DNA strand (0 or 1) of the chromosome.
+   * @return true if the strand is labelled.
+   */
+  public boolean isStrandLabelled(int homologous_pair, int chromosome, int dna_strand)
+  {
+    return isStrandLabelled(this.words, 0, homologous_pair, chromosome, dna_strand);
+  }// isStrandLabelled
+
+  /**
+   * Allows the label status of a single DNA strand to be changed
+   *
+   * @param homologous_pair the homologous pair of the strand.
+   * @param chromosome the chromosome (0 or 1) of the strand within the pair.
+   * @param dna_strand the DNA strand (0 or 1) of the chromosome.
+   * @param labelled the new label status of the strand.
+   */
+  public void setStrandLabelled(int homologous_pair, int chromosome, int dna_strand, boolean labelled)
+  {
+    long bit = 1L << strandBit(homologous_pair, chromosome, dna_strand);
+    int word = homologous_pair / PAIRS_PER_WORD;
+    this.words[word] = labelled ? this.words[word] | bit : this.words[word] & ~bit;
+  }// setStrandLabelled
+
+  /**
+   * Provides read access to the haploid number of this genome
+   *
+   * @return the haploid number.
+   */
+  public int getHaploidNumber()
+  {
+    return this.haploid_number;
+  }// getHaploidNumber
+
+  /**
+   * Provides read access to the packed words of this genome
+   *
+   * @return the words holding the strand bits.
+   */
+  public long[] getWords()
+  {
+    return this.words;
+  }// getWords
+
+  /**
+   * Returns a string of the label status of every strand, one homologous pair
+   * per line, e.g. "0: 01 11" for a pair whose first strand is unlabelled.
+   *
+   * @return a String representation of this genome.
+   */
+  @Override
+  public String toString()
+  {
+    StringBuilder genome_string = new StringBuilder();
+    for(int homologous_pair = 0; homologous_pair < haploid_number; homologous_pair++)
+    {
+      long pair = (words[homologous_pair / PAIRS_PER_WORD] >>> strandBit(homologous_pair, 0, 0)) & PAIR_MASK;
+      genome_string.append(homologous_pair).append(": ")
+          .append(pair & 1L).append((pair >>> 1) & 1L).append(' ')
+          .append((pair >>> 2) & 1L).append((pair >>> 3) & 1L).append(System.lineSeparator());
+    }
+    return genome_string.toString();
+  }// toString
+}// PackedDiploidGenome
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Divides the cells of one timestep across the threads of a ForkJoinPool.
+ *
+ * The population is cut into partitions of PARTITION_SIZE consecutive cells.
+ * The cut does not depend on the number of threads, and neither does anything
+ * else a partition sees:
+ *
+ *  1. every partition counts its dividing cells, picked by a DivisionSampler
+ *     seeded from the partition's division seed, in parallel;
+ *  2. a parallel prefix sum over the counts gives each partition the first
+ *     population index and cell ID of the daughter cells it will append;
+ *  3. the population, IDs and lineage tree are grown once for the whole step;
+ *  4. every partition divides its cells with its own random generator, whose
+ *     seed is derived from the timestep's seed and the partition number, or
+ *     with common random numbers keyed by each mother cell, and formats its
+ *     records into its own buffer;
+ *  5. the buffers are written to the results file in partition order.
+ *
+ * A timestep therefore gives the same population, lineage tree and results file
+ * whatever the number of threads, and the same as Simulation's serial loop,
+ * which derives the same generators at the same partition boundaries. Partitions are
+ * processed in waves so only a bounded number of record buffers are held.
+ *
+ * @see kc_phd_cambridge.cellproliferation.Simulation
+ * @author Kyata Chibalabala
+ */
+public class ParallelTimestep
+{
+  // Class variables
+  public static final int PARTITION_SHIFT = 14, PARTITION_SIZE = 1 << PARTITION_SHIFT;
+  private static final int PARTITIONS_PER_THREAD_IN_WAVE = 4;
+
+  // Instance variables
+  private final ForkJoinPool pool;
+  private final GenomeStateTable genome_states;
+  private final double division_probability;
+  private final RandomStreams common_random_streams; // Keys each division's segregation by its cell when not null
+  private final ThreadLocal<DivisionKernel> division_kernels; // Each worker thread divides cells with its own kernel
+
+  /**
+   * Constructor.
+   *
+   * @param new_pool the pool whose threads divide the cells.
+   * @param karyotype the chromosome sizes of the simulated organism.
+   * @param new_genome_states the genome states shared by the cells of the simulation.
+   * @param new_division_probability the probability that a cell divides during a timestep.
+   * @param new_common_random_streams the streams each division's segregation is keyed from, or null to draw it from each partition's generator.
+   */
+  public ParallelTimestep(ForkJoinPool new_pool, KaryotypeTable karyotype, GenomeStateTable new_genome_states, double new_division_probability,
+      RandomStreams new_common_random_streams)
+  {
+    this.pool = new_pool;
+    this.genome_states = new_genome_states;
+    this.division_probability = new_division_probability;
+    this.common_random_streams = new_common_random_streams;
+    this.division_kernels = ThreadLocal.withInitial(() -> new DivisionKernel(karyotype, new_genome_states));
+  }// Constructor
+
+  /**
+   * Divides every cell present at the beginning of the timestep.
+   *
+   * @param cell_population the population, which must allow concurrent updates at different indices.
+   * @param newest_generation the most recent generation of each lineage, updated as cells divide.
+   * @param cell_id_allocator the allocator the IDs of new cells are claimed from.
+   * @param lineage_tree the lineage tree the divisions are recorded in, or null.
+   * @param timestep_seed the seed of the timestep, from which each partition's generator is seeded.
+   * @param division_seed the division seed of the timestep, from which each partition's DivisionSampler is seeded.
+   * @param birth_time the time the daughter cells are born.
+   * @param output_writer the writer of the results file.
+   * @throws IOException if the records could not be written.
+   */
+  public void divide(final CellPopulation cell_population, final int[] newest_generation, CellIdAllocator cell_id_allocator,
+      final LineageTree lineage_tree, long timestep_seed, long division_seed, final float birth_time, RecordWriter output_writer) throws IOException
+  {
+    final int population_size_at_beginning = cell_population.size();
+    final int number_of_partitions = (population_size_at_beginning + PARTITION_SIZE - 1) >>> PARTITION_SHIFT;
+    final long[] partition_seeds = new long[number_of_partitions], partition_division_seeds = new long[number_of_partitions];
+    for(int partition = 0; partition < number_of_partitions; partition++)
+    {// Seeded as in the serial loop
+      partition_seeds[partition] = RandomStreams.partitionSeed(timestep_seed, partition);
+      partition_division_seeds[partition] = RandomStreams.partitionSeed(division_seed, partition);
+    }
+
+    // Count the divisions of each partition, then turn the counts into the
+    // number of divisions in all partitions up to and including each one
+    final int[] divisions_up_to = new int[number_of_partitions];
+    forEachPartition(0, number_of_partitions, (int partition) ->
+    {
+      int divisions = 0;
+      final int partition_end = partitionEnd(partition, population_size_at_beginning);
+      DivisionSampler division_sampler = new DivisionSampler(division_probability, partition_division_seeds[partition]);
+      for(int mother_cell_index = division_sampler.nextDividingCell(partitionStart(partition), partition_end); mother_cell_index < partition_end;
+          mother_cell_index = division_sampler.nextDividingCell(mother_cell_index + 1, partition_end))
+      {
+        divisions++;
+      }
+      divisions_up_to[partition] = divisions;
+    });
+    Arrays.parallelPrefix(divisions_up_to, Integer::sum);
+    final int total_divisions = number_of_partitions == 0 ? 0 : divisions_up_to[number_of_partitions - 1];
+
+    // Grow everything once for the whole timestep
+    final int first_new_cell_index = cell_population.appendCells(total_divisions);
+    final long first_new_cell_id = cell_id_allocator.claimRange(total_divisions);
+    final int first_new_node = lineage_tree == null ? 0 : lineage_tree.reserveDivisions(total_divisions, cell_population.size());
+
+    final int wave_size = PARTITIONS_PER_THREAD_IN_WAVE * pool.getParallelism();
+    final ByteArrayOutputStream[] partition_records = new ByteArrayOutputStream[Math.min(wave_size, Math.max(number_of_partitions, 1))];
+    for(int first_partition_in_wave = 0; first_partition_in_wave < number_of_partitions; first_partition_in_wave += wave_size)
+    {// for each wave of partitions
+      final int wave_start = first_partition_in_wave;
+      forEachPartition(wave_start, Math.min(number_of_partitions, wave_start + wave_size), (int partition) ->
+      {
+        DivisionKernel division_kernel = division_kernels.get();
+        SplittableRandom partition_random = new SplittableRandom(partition_seeds[partition]);
+        DivisionSampler division_sampler = new DivisionSampler(division_probability, partition_division_seeds[partition]);
+        final int partition_end = partitionEnd(partition, population_size_at_beginning);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        try(RecordWriter partition_writer = new RecordWriter(records, genome_states))
+        {
+          int division = partition == 0 ? 0 : divisions_up_to[partition - 1]; // Divisions in earlier partitions
+          for(int mother_cell_index = division_sampler.nextDividingCell(partitionStart(partition), partition_end); mother_cell_index < partition_end;
+              mother_cell_index = division_sampler.nextDividingCell(mother_cell_index + 1, partition_end))
+          {// for each dividing cell in the partition
+            // Mother cell becomes daughter cell one, in place, daughter cell two
+            // takes the index and ID reserved for this division
+            int index_of_daughter_cell_one = mother_cell_index;
+            int next_generation = cell_population.getGeneration(index_of_daughter_cell_one) + 1;
+            cell_population.setGeneration(index_of_daughter_cell_one, next_generation);
+            int lineage_of_newly_created_cell = cell_population.getLineageId(index_of_daughter_cell_one);
+            int index_of_daughter_cell_two = first_new_cell_index + division;
+            long id_of_newly_created_cell = first_new_cell_id + division;
+            cell_population.setCellId(index_of_daughter_cell_two, id_of_newly_created_cell);
+            cell_population.setLineageId(index_of_daughter_cell_two, lineage_of_newly_created_cell);
+            cell_population.setGeneration(index_of_daughter_cell_two, next_generation);
+
+            if(next_generation > newest_generation[lineage_of_newly_created_cell])
+            {// Rare, at most once per lineage per partition
+              synchronized(newest_generation)
+              {
+                newest_generation[lineage_of_newly_created_cell] = Math.max(newest_generation[lineage_of_newly_created_cell], next_generation);
+              }
+            }
+
+            if(common_random_streams != null)
+              division_kernel.performSPhase(cell_population, index_of_daughter_cell_one, index_of_daughter_cell_two, 
+                  common_random_streams.segregationSeed(lineage_of_newly_created_cell, next_generation - 1, mother_cell_index));
+            else
+              division_kernel.performSPhase(cell_population, index_of_daughter_cell_one, index_of_daughter_cell_two, partition_random);
+            if(lineage_tree != null)
+              lineage_tree.setDivision(first_new_node + 2 * division, index_of_daughter_cell_one, index_of_daughter_cell_two, birth_time);
+
+            partition_writer.writeRecord(cell_population.getCellId(index_of_daughter_cell_one), next_generation, lineage_of_newly_created_cell, cell_population.getGenomeState(index_of_daughter_cell_one));
+            partition_writer.writeRecord(id_of_newly_created_cell, next_generation, lineage_of_newly_created_cell, cell_population.getGenomeState(index_of_daughter_cell_two));
+            division++;
+          }// for each dividing cell in the partition
+        }
+        catch(IOException e)
+        {// Writing to memory does not fail
+          throw new IllegalStateException(e);
+        }
+        partition_records[partition - wave_start] = records;
+      });
+
+      for(int partition = wave_start; partition < Math.min(number_of_partitions, wave_start + wave_size); partition++)
+      {// Write the wave's records in partition order
+        output_writer.writeRecords(partition_records[partition - wave_start]);
+        partition_records[partition - wave_start] = null;
+      }
+    }// for each wave of partitions
+  }// divide
+
+  private static int partitionStart(int partition)
+  {
+    return partition << PARTITION_SHIFT;
+  }// partitionStart
+
+  private static int partitionEnd(int partition, int population_size)
+  {
+    return (int)Math.min((long)(partition + 1) << PARTITION_SHIFT, population_size);
+  }// partitionEnd
+
+  /**
+   * Work done on one partition.
+   */
+  private interface PartitionWork
+  {
+    void process(int partition);
+  }// PartitionWork
+
+  /**
+   * Runs work on a range of partitions in the pool, splitting the range in halves down to single partitions.
+   */
+  private void forEachPartition(int first_partition, int end_partition, PartitionWork work)
+  {
+    if(first_partition < end_partition)
+      pool.invoke(new PartitionRange(first_partition, end_partition, work));
+  }// forEachPartition
+
+  private static final class PartitionRange extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    private final int first_partition, end_partition;
+    private final PartitionWork work;
+
+    PartitionRange(int new_first_partition, int new_end_partition, PartitionWork new_work)
+    {
+      this.first_partition = new_first_partition;
+      this.end_partition = new_end_partition;
+      this.work = new_work;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if(end_partition - first_partition == 1)
+      {
+        work.process(first_partition);
+        return;
+      }
+      int middle_partition = (first_partition + end_partition) >>> 1;
+      ForkJoinTask.invokeAll(new PartitionRange(first_partition, middle_partition, work), new PartitionRange(middle_partition, end_partition, work));
+    }
+  }// PartitionRange
+}// ParallelTimestep
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.util.SplittableRandom;
+
+/**
+ * The random number streams of a simulation, all derived from the seed in its
+ * SimulationData.
+ *
+ * Each stream is keyed by what it is used for, a lineage, or the lineage, 
+ * timestep and partition of the cells it divides, and its seed is a hash of
+ * the simulation's seed and those keys. A stream therefore does not depend on
+ * how many other streams were created before it or by which thread, so a run
+ * with a given seed, engine and execution mode gives bit-identical results
+ * whatever the number of threads, and no generator is shared between threads.
+ * Different engines and execution modes key their streams differently, so 
+ * their results for the same seed agree only in distribution.
+ *
+ * The segregation of a single division can also be keyed by the lineage,
+ * generation and population index of the mother cell. Runs of different
+ * organisms or sexes given the same seed then flip the same coin for each
+ * homologous pair of the same cell, so their results are positively 
+ * correlated and the difference between them is far less noisy than that of
+ * independent runs, see SimulationData.setCommonRandomNumbers.
+ *
+ * @see kc_phd_cambridge.cellproliferation.SimulationData
+ * @author Kyata Chibalabala
+ */
+public class RandomStreams
+{
+  // Class variables
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L; // The odd constant SplittableRandom also steps its seeds by
+  private static final long LINEAGE_STREAM = 1, POPULATION_STREAM = 2, TIMESTEP_STREAM = 3, SEGREGATION_STREAM = 4, DIVISION_STREAM = 5; // Separates the streams of different uses
+
+  // Instance variables
+  private final long seed;
+
+  /**
+   * Constructor.
+   *
+   * @param new_seed the seed of the simulation.
+   */
+  public RandomStreams(long new_seed)
+  {
+    this.seed = new_seed;
+  }// Constructor
+
+  /**
+   * Creates the stream of one lineage, for engines that simulate lineages
+   * separately.
+   *
+   * @param lineage the lineage ID.
+   * @return a new generator, the same for the same seed and lineage.
+   */
+  public SplittableRandom lineageStream(int lineage)
+  {
+    return new SplittableRandom(deriveSeed(deriveSeed(seed, LINEAGE_STREAM), lineage));
+  }// lineageStream
+
+  /**
+   * Creates the stream of a whole population, for engines whose lineages can
+   * not be simulated separately.
+   *
+   * @return a new generator, the same for the same seed.
+   */
+  public SplittableRandom populationStream()
+  {
+    return new SplittableRandom(deriveSeed(seed, POPULATION_STREAM));
+  }// populationStream
+
+  /**
+   * Provides the seed of one timestep of the cell engine, from which the seed
+   * of each partition of the timestep is derived.
+   *
+   * @param first_lineage the first lineage of the population divided, 0 unless it is one lineage of a lineage-partitioned simulation.
+   * @param timestep the number of the timestep, from 0.
+   * @return the seed of the timestep.
+   */
+  public long timestepSeed(int first_lineage, int timestep)
+  {
+    return deriveSeed(deriveSeed(deriveSeed(seed, TIMESTEP_STREAM), first_lineage), timestep);
+  }// timestepSeed
+
+  /**
+   * Provides the seed from which the cell engine picks the cells dividing in
+   * one timestep, kept apart from the timestep's segregation seed so that
+   * which cells divide and how their genomes segregate are independent. The
+   * seed of each partition's DivisionSampler is derived from it with 
+   * partitionSeed.
+   *
+   * @param first_lineage the first lineage of the population divided, 0 unless it is one lineage of a lineage-partitioned simulation.
+   * @param timestep the number of the timestep, from 0.
+   * @return the division seed of the timestep.
+   */
+  public long divisionSeed(int first_lineage, int timestep)
+  {
+    return deriveSeed(deriveSeed(deriveSeed(seed, DIVISION_STREAM), first_lineage), timestep);
+  }// divisionSeed
+
+  /**
+   * Provides the seed of one partition of a timestep.
+   *
+   * @param timestep_seed the seed of the timestep, or its division seed.
+   * @param partition the number of the partition, from 0.
+   * @return the seed of the partition's generator.
+   */
+  public static long partitionSeed(long timestep_seed, int partition)
+  {
+    return deriveSeed(timestep_seed, partition);
+  }// partitionSeed
+
+  /**
+   * Provides the seed of the segregation of one division, for runs sharing
+   * their segregation coin flips with related runs.
+   *
+   * @param lineage the lineage of the mother cell.
+   * @param generation the generation of the mother cell.
+   * @param cell the population index of the mother cell.
+   * @return the seed the division's coin flips are drawn from by segregationBits.
+   */
+  public long segregationSeed(int lineage, int generation, int cell)
+  {
+    return deriveSeed(deriveSeed(deriveSeed(deriveSeed(seed, SEGREGATION_STREAM), lineage), generation), cell);
+  }// segregationSeed
+
+  /**
+   * Provides 64 random bits of the segregation of one division, without the
+   * state of a generator.
+   *
+   * @param segregation_seed the seed of the division.
+   * @param draw the number of the long drawn for the division, from 0.
+   * @return the random bits.
+   */
+  public static long segregationBits(long segregation_seed, int draw)
+  {
+    return deriveSeed(segregation_seed, draw);
+  }// segregationBits
+
+  /**
+   * Hashes a seed and a key into a new seed, with the SplitMix64 finaliser.
+   */
+  private static long deriveSeed(long parent_seed, long key)
+  {
+    long z = parent_seed + (key + 1) * GOLDEN_GAMMA;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }// deriveSeed
+
+  //*** Access methods ***//
+
+  /**
+   * Provides read access to the seed every stream is derived from
+   *
+   * @return the seed of the simulation.
+   */
+  public long getSeed()
+  {
+    return this.seed;
+  }// getSeed
+}// RandomStreams
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import static kc_phd_cambridge.cellproliferation.FXMLMainWindowController.new_line;
+import static kc_phd_cambridge.cellproliferation.FXMLMainWindowController.tab;
+
+/**
+ * Writes the per-cell records of a simulation to its results file.
+ *
+ * Each record is one line of tab-separated fields read back by DataAnalysis:
+ *
+ *  cell ID, generation, cell lineage, percentage labelled[, weight]
+ *
+ * The weight is only written for records that stand for more than one cell,
+ * or for a cell carrying an importance weight.
+ *
+ * Records are formatted straight into a byte buffer that is flushed to the file
+ * when full. Numbers are written digit by digit and the text of each genome
+ * state's labelled percentage is produced once, the first time the state is
+ * written, so writing a record does not allocate.
+ *
+ * @see kc_phd_cambridge.cellproliferation.DataAnalysis
+ * @author Kyata Chibalabala
+ */
+public class RecordWriter implements Closeable
+{
+  // Class variables
+  private static final byte[] FIELD_SEPARATOR = (tab + tab).getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] LINE_SEPARATOR = new_line.getBytes(StandardCharsets.US_ASCII);
+  private static final int BUFFER_SIZE = 1 << 16, LONGEST_NUMBER = 20;
+
+  // Instance variables
+  private final OutputStream output_stream;
+  private final GenomeStateTable genome_states;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int buffer_position = 0;
+  private byte[][] percentage_text = new byte[64][]; // The labelled percentage of each genome state, as written by Double.toString
+
+  /**
+   * Constructor, creates or overwrites the results file.
+   *
+   * @param file_name the name of the results file.
+   * @param new_genome_states the genome states whose labelled percentages are written.
+   * @throws IOException if the file can not be opened for writing.
+   */
+  public RecordWriter(String file_name, GenomeStateTable new_genome_states) throws IOException
+  {
+    this(new FileOutputStream(file_name), new_genome_states);
+  }// Constructor
+
+  /**
+   * Constructor, writes records to a stream, e.g. an in-memory buffer holding
+   * the records of one partition of a parallel timestep.
+   *
+   * @param new_output_stream the stream the records are written to.
+   * @param new_genome_states the genome states whose labelled percentages are written.
+   */
+  public RecordWriter(OutputStream new_output_stream, GenomeStateTable new_genome_states)
+  {
+    this.output_stream = new_output_stream;
+    this.genome_states = new_genome_states;
+  }// Constructor
+
+  /**
+   * Appends the record of one cell to the results file.
+   *
+   * @param cell_id the unique ID of the cell.
+   * @param generation the generation of the cell.
+   * @param lineage the lineage of the cell.
+   * @param genome_state the handle of the cell's genome state.
+   * @throws IOException if the buffer could not be flushed to the file.
+   */
+  public void writeRecord(long cell_id, int generation, int lineage, int genome_state) throws IOException
+  {
+    byte[] percentage = percentageText(genome_state);
+    if(buffer_position + 4 * (LONGEST_NUMBER + FIELD_SEPARATOR.length) + percentage.length + LINE_SEPARATOR.length > BUFFER_SIZE)
+      flush();
+
+    writeNumber(cell_id);
+    writeBytes(FIELD_SEPARATOR);
+    writeNumber(generation);
+    writeBytes(FIELD_SEPARATOR);
+    writeNumber(lineage);
+    writeBytes(FIELD_SEPARATOR);
+    writeBytes(percentage);
+    writeBytes(LINE_SEPARATOR);
+  }// writeRecord
+
+  /**
+   * Appends the record of a number of identical cells to the results file.
+   *
+   * @param cell_id the unique ID of the cell, or -1 if the record stands for more than one cell.
+   * @param generation the generation of the cells.
+   * @param lineage the lineage of the cells.
+   * @param genome_state the handle of the cells' genome state.
+   * @param number_of_cells the number of cells the record stands for, written as the record's weight.
+   * @throws IOException if the buffer could not be flushed to the file.
+   */
+  public void writeRecord(long cell_id, int generation, int lineage, int genome_state, long number_of_cells) throws IOException
+  {
+    writeRecord(cell_id, generation, lineage, genome_state);
+    buffer_position -= LINE_SEPARATOR.length; // The buffer always has room for one more number
+    writeBytes(FIELD_SEPARATOR);
+    writeNumber(number_of_cells);
+    writeBytes(LINE_SEPARATOR);
+  }// writeRecord
+
+  /**
+   * Appends the record of a cell carrying an importance weight to the results file.
+   *
+   * @param cell_id the unique ID of the cell.
+   * @param generation the generation of the cell.
+   * @param lineage the lineage of the cell.
+   * @param genome_state the handle of the cell's genome state.
+   * @param weight the number of cells the record stands for.
+   * @throws IOException if the buffer could not be flushed to the file.
+   */
+  public void writeRecord(long cell_id, int generation, int lineage, int genome_state, double weight) throws IOException
+  {
+    writeRecord(cell_id, generation, lineage, genome_states.getPercentageLabelled(genome_state), weight);
+  }// writeRecord
+
+  /**
+   * Appends a record whose labelled percentage is not that of a genome state,
+   * e.g. a value of a computed distribution, with its weight.
+   *
+   * @param cell_id the unique ID of the cell, or -1 if the record does not describe a single cell.
+   * @param generation the generation of the record.
+   * @param lineage the lineage of the record.
+   * @param percentage_labelled the percentage of the genome labelled.
+   * @param weight the number of cells, or the probability mass, the record stands for.
+   * @throws IOException if the buffer could not be flushed to the file.
+   */
+  public void writeRecord(long cell_id, int generation, int lineage, double percentage_labelled, double weight) throws IOException
+  {
+    byte[] percentage = Double.toString(percentage_labelled).getBytes(StandardCharsets.US_ASCII);
+    byte[] weight_text = Double.toString(weight).getBytes(StandardCharsets.US_ASCII);
+    if(buffer_position + 3 * (LONGEST_NUMBER + FIELD_SEPARATOR.length) + 2 * FIELD_SEPARATOR.length + percentage.length + weight_text.length + LINE_SEPARATOR.length > BUFFER_SIZE)
+      flush();
+
+    writeNumber(cell_id);
+    writeBytes(FIELD_SEPARATOR);
+    writeNumber(generation);
+    writeBytes(FIELD_SEPARATOR);
+    writeNumber(lineage);
+    writeBytes(FIELD_SEPARATOR);
+    writeBytes(percentage);
+    writeBytes(FIELD_SEPARATOR);
+    writeBytes(weight_text);
+    writeBytes(LINE_SEPARATOR);
+  }// writeRecord
+
+  /**
+   * Appends records that were already formatted by another RecordWriter.
+   *
+   * @param formatted_records the records, as written to an in-memory buffer.
+   * @throws IOException if the records could not be written to the file.
+   */
+  public void writeRecords(ByteArrayOutputStream formatted_records) throws IOException
+  {
+    flush();
+    formatted_records.writeTo(output_stream);
+  }// writeRecords
+
+  /**
+   * Returns the text of a genome state's labelled percentage, producing it on first use.
+   */
+  private byte[] percentageText(int genome_state)
+  {
+    if(genome_state >= percentage_text.length)
+      percentage_text = Arrays.copyOf(percentage_text, Math.max(genome_state + 1, percentage_text.length * 2));
+    if(percentage_text[genome_state] == null)
+      percentage_text[genome_state] = Double.toString(genome_states.getPercentageLabelled(genome_state)).getBytes(StandardCharsets.US_ASCII);
+    return percentage_text[genome_state];
+  }// percentageText
+
+  /**
+   * Writes the decimal digits of a number into the buffer.
+   */
+  private void writeNumber(long number)
+  {
+    if(number < 0)
+    {
+      buffer[buffer_position++] = '-';
+      if(number == Long.MIN_VALUE)
+      {// Can not be negated, write the last digit separately
+        writeNumber(-(number / 10));
+        buffer[buffer_position++] = (byte)('0' - (number % 10));
+        return;
+      }
+      number = -number;
+    }
+    int number_of_digits = 1;
+    for(long remaining = number / 10; remaining > 0; remaining /= 10)
+    {
+      number_of_digits++;
+    }
+    for(int digit = buffer_position + number_of_digits - 1; digit >= buffer_position; digit--)
+    {
+      buffer[digit] = (byte)('0' + (number % 10));
+      number /= 10;
+    }
+    buffer_position += number_of_digits;
+  }// writeNumber
+
+  private void writeBytes(byte[] bytes)
+  {
+    System.arraycopy(bytes, 0, buffer, buffer_position, bytes.length);
+    buffer_position += bytes.length;
+  }// writeBytes
+
+  /**
+   * Writes the contents of the buffer to the results file.
+   *
+   * @throws IOException if the file could not be written.
+   */
+  public void flush() throws IOException
+  {
+    output_stream.write(buffer, 0, buffer_position);
+    buffer_position = 0;
+  }// flush
+
+  /**
+   * Flushes the remaining records and closes the results file.
+   *
+   * @throws IOException if the file could not be written or closed.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      flush();
+    }
+    finally
+    {
+      output_stream.close();
+    }
+  }// close
+}// RecordWriter
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Follows a bounded random sample of each lineage's cells, so that runs of 40
+ * to 60 generations fit in memory.
+ *
+ * Every tracked cell carries an importance weight, the number of cells of its
+ * lineage it stands for; founders weigh 1 and daughters inherit their mother's
+ * weight. When a timestep leaves more than the cap of tracked cells, a uniform
+ * sample of cap cells is kept without replacement and each survivor's weight
+ * is multiplied by (cells before sampling) / cap. The expected total weight of
+ * any set of genome states is then the number of such cells in the full
+ * population, so the weighted per-generation distributions are unbiased while
+ * memory and time stay O(cap) per lineage.
+ *
+ * Records are written for both daughters of every tracked division, with the
+ * daughter's weight, and DataAnalysis aggregates them by weight.
+ *
+ * @see kc_phd_cambridge.cellproliferation.SimulationEngine
+ * @author Kyata Chibalabala
+ */
+public class SampledLineageEngine implements SimulationEngine
+{
+  // Instance variables
+  private final int haploid_number, initial_population_size, simulation_duration, time_interval, tracked_cells;
+  private final GenomeStateTable genome_states;
+  private final DivisionKernel division_kernel;
+  private final RandomStreams random_streams;
+  private final CellIdAllocator.IdBlock cell_ids;
+
+  /**
+   * Constructor.
+   *
+   * @param input_parameters the parameters of the run, including the cap of tracked cells per lineage.
+   * @param karyotype the chromosome sizes of the simulated organism.
+   * @param new_genome_states the genome states of the run.
+   * @param random_streams the random number streams of the run, each lineage uses its own stream.
+   * @param cell_id_allocator the allocator the IDs of tracked cells are taken from.
+   */
+  public SampledLineageEngine(SimulationData input_parameters, KaryotypeTable karyotype, GenomeStateTable new_genome_states,
+      RandomStreams random_streams, CellIdAllocator cell_id_allocator)
+  {
+    this.haploid_number = karyotype.getHaploidNumber();
+    this.initial_population_size = input_parameters.getInitialPopulationSize();
+    this.simulation_duration = input_parameters.getSimulationDuration();
+    this.time_interval = input_parameters.getTimeInterval();
+    this.tracked_cells = input_parameters.getTrackedCells();
+    this.genome_states = new_genome_states;
+    this.division_kernel = new DivisionKernel(karyotype, new_genome_states);
+    this.random_streams = random_streams;
+    this.cell_ids = cell_id_allocator.newIdBlock();
+  }// Constructor
+
+  @Override
+  public void simulate(RecordWriter output_writer, int[] newest_generation) throws IOException
+  {
+    for(int lineage = 0; lineage < initial_population_size; lineage++)
+    {// for each lineage, lineages never interact
+      SplittableRandom lineage_random = random_streams.lineageStream(lineage);
+      CellPopulation tracked_population = new HeapCellPopulation(haploid_number, 2 * tracked_cells);
+      double[] weights = new double[2 * tracked_cells];
+      tracked_population.append(cell_ids.nextId(), lineage, 0);
+      weights[0] = 1;
+      newest_generation[lineage] = 0;
+
+      for(int current_time = 0; current_time < simulation_duration; current_time += time_interval)
+      {// at each time interval every tracked cell divides
+        final int population_size_at_beginning = tracked_population.size();
+        for(int mother_cell_index = 0; mother_cell_index < population_size_at_beginning; mother_cell_index++)
+        {
+          int next_generation = tracked_population.getGeneration(mother_cell_index) + 1;
+          tracked_population.setGeneration(mother_cell_index, next_generation);
+          int index_of_daughter_cell_two = tracked_population.append(cell_ids.nextId(), lineage, next_generation);
+          weights[index_of_daughter_cell_two] = weights[mother_cell_index];
+          division_kernel.performSPhase(tracked_population, mother_cell_index, index_of_daughter_cell_two, lineage_random);
+          newest_generation[lineage] = Math.max(newest_generation[lineage], next_generation);
+
+          output_writer.writeRecord(tracked_population.getCellId(mother_cell_index), next_generation, lineage, tracked_population.getGenomeState(mother_cell_index), weights[mother_cell_index]);
+          output_writer.writeRecord(tracked_population.getCellId(index_of_daughter_cell_two), next_generation, lineage, tracked_population.getGenomeState(index_of_daughter_cell_two), weights[index_of_daughter_cell_two]);
+        }
+        if(tracked_population.size() > tracked_cells)
+          tracked_population = sample(tracked_population, weights, lineage_random);
+      }// at each time interval
+    }// for each lineage
+  }// simulate
+
+  /**
+   * Keeps a uniform sample of tracked_cells cells without replacement, scaling
+   * up their weights to stand for the cells that were let go.
+   */
+  private CellPopulation sample(CellPopulation population, double[] weights, SplittableRandom random)
+  {
+    int number_of_cells = population.size();
+    double weight_factor = number_of_cells / (double)tracked_cells;
+    int[] indices = new int[number_of_cells];
+    for(int cell = 0; cell < number_of_cells; cell++)
+    {
+      indices[cell] = cell;
+    }
+    for(int kept = 0; kept < tracked_cells; kept++)
+    {// Partial Fisher-Yates shuffle, the first tracked_cells indices are the sample
+      int chosen = kept + random.nextInt(number_of_cells - kept);
+      int swapped_index = indices[kept];
+      indices[kept] = indices[chosen];
+      indices[chosen] = swapped_index;
+    }
+    Arrays.sort(indices, 0, tracked_cells); // Keep the population order
+
+    CellPopulation sampled_population = new HeapCellPopulation(haploid_number, 2 * tracked_cells);
+    for(int kept = 0; kept < tracked_cells; kept++)
+    {
+      int cell = indices[kept];
+      int new_index = sampled_population.append(population.getCellId(cell), population.getLineageId(cell), population.getGeneration(cell));
+      sampled_population.setGenomeState(new_index, population.getGenomeState(cell));
+      weights[new_index] = weights[cell] * weight_factor;
+    }
+    return sampled_population;
+  }// sample
+}// SampledLineageEngine
@@ -15,10 +15,18 @@
  */
 package kc_phd_cambridge.cellproliferation;
 
-import java.io.FileWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import static kc_phd_cambridge.cellproliferation.FXMLMainWindowController.new_line;
 import static kc_phd_cambridge.cellproliferation.FXMLMainWindowController.tab;
 
@@ -30,19 +38,36 @@ public class Simulation implements Runnable
 {
   // Instance variables
   public static final int FEMALE = 1, MALE = 2; // "enums"
-  private static final double STRAND_FULLY_LABELLED = 1.0, STRAND_UNLABELLED = 0.0, GENOME_UNLABELLED = 0.0;
-  private static final boolean CAN_DIVIDE = true, CANT_DIVIDE = false;
+  public static final int HEAP_STORAGE = 1, OFF_HEAP_STORAGE = 2, SPILLING_STORAGE = 3; // "enums" for where the cell population is stored
+  public static final int PARALLEL_TIMESTEPS = 1, PARALLEL_LINEAGES = 2; // "enums" for how the work is shared between threads
+  public static final int CELL_ENGINE = 1, HISTOGRAM_ENGINE = 2, EXACT_ENGINE = 3, MEAN_FIELD_ENGINE = 4, SAMPLED_ENGINE = 5, TEMPLATE_STRAND_ENGINE = 6, EVENT_ENGINE = 7, STOCHASTIC_RATE_ENGINE = 8, IMPORTANCE_ENGINE = 9; // "enums" for the engine simulating the run
+  private static final long IDS_PER_LINEAGE = 1L << 31; // A lineage simulated separately has an int indexed population, so never needs more IDs
   
 	private int[] newest_generation; // Keep track of the most recent generation of cells in each lineage
-	private int id_of_last_created_cell = -1; // The cell ID of the last cell that was created. Tracked to set the ID of the next cell to be created. 
+	private final CellIdAllocator cell_id_allocator; // Hands out unique 64-bit cell IDs in blocks
+	private CellIdAllocator.IdBlock cell_ids; // The block of IDs this simulation's worker is taking new cell IDs from
   private final int haploid_number; 
   
-  // The ArrayList to store the growing cell population
-  private CopyOnWriteArrayList<Cell> cell_population = new CopyOnWriteArrayList<>(); 
+  // The store for the growing cell population, on or off the heap or paged to disk
+  private CellPopulation cell_population; 
+  // Every division of this simulation, null unless requested through SimulationData
+  private LineageTree lineage_tree;
   
   // The ArrayList to store the appropriate subset of genome data
   List<String> genome_data_subset = new ArrayList<>();
-  double[][][] blank_genome;
+  // The chromosome sizes parsed from the genome data subset
+  private KaryotypeTable karyotype;
+  // The distinct genome states carried by cells of this simulation
+  private GenomeStateTable genome_states;
+  private DivisionKernel division_kernel;
+  // The streams every random decision of this simulation is derived from
+  private final RandomStreams random_streams;
+  // The first lineage simulated, lineages are numbered from 0 unless this is one lineage of a lineage-partitioned simulation
+  private final int first_lineage;
+  private final boolean is_lineage_shard;
+  private final int number_of_threads;
+  private final boolean record_lineage_tree;
+  private long final_population_size = 0; // Summed over lineages when they are simulated separately
   
   // Instance variables passed to constructor
   private final SimulationData input_parameters;
@@ -66,12 +91,50 @@ public class Simulation implements Runnable
    this.simulation_duration = input_parameters.getSimulationDuration();
    this.time_interval = input_parameters.getTimeInterval();
    this.haploid_number = input_parameters.getHaploidNumber();
-   this.blank_genome = newEmptyDiploidGenome();
    this.newest_generation = new int[this.initial_population_size];
    for(int lineage =0; lineage < newest_generation.length; lineage++)
    {
      newest_generation[lineage] = -1;
    }
+   this.cell_id_allocator = new CellIdAllocator(CellIdAllocator.DEFAULT_BLOCK_SIZE);
+   this.random_streams = new RandomStreams(input_parameters.getRandomSeed());
+   this.first_lineage = 0;
+   this.is_lineage_shard = false;
+   this.number_of_threads = input_parameters.getNumberOfThreads();
+   this.record_lineage_tree = input_parameters.getRecordLineageTree();
+  }
+  
+  /**
+   * Constructor for one lineage of a lineage-partitioned simulation. The lineage
+   * has its own population, results shard and range of cell IDs, starting 
+   * after the founders' IDs at an offset fixed by its lineage, so the IDs it
+   * hands out do not depend on the order in which lineages run. It shares the
+   * parent's random number streams, which it draws from by its own keys, and
+   * read-mostly tables.
+   * 
+   * @param parent the simulation the lineage belongs to.
+   * @param lineage the lineage ID of the founder cell, which is also its cell ID.
+   */
+  private Simulation(Simulation parent, int lineage)
+  {
+    this.input_parameters = parent.input_parameters;
+    this.organism = parent.organism;
+    this.sex = parent.sex;
+    this.initial_population_size = 1;
+    this.simulation_duration = parent.simulation_duration;
+    this.time_interval = parent.time_interval;
+    this.haploid_number = parent.haploid_number;
+    this.newest_generation = new int[]{-1};
+    this.cell_id_allocator = new CellIdAllocator(CellIdAllocator.DEFAULT_BLOCK_SIZE, parent.initial_population_size + lineage * IDS_PER_LINEAGE);
+    this.random_streams = parent.random_streams;
+    this.first_lineage = lineage;
+    this.is_lineage_shard = true;
+    this.number_of_threads = 1;
+    this.record_lineage_tree = false;
+    this.genome_data_subset = parent.genome_data_subset;
+    this.karyotype = parent.karyotype;
+    this.genome_states = parent.genome_states;
+    this.division_kernel = new DivisionKernel(karyotype, genome_states);
   }
   
   @Override
@@ -79,10 +142,41 @@ public class Simulation implements Runnable
   {
     //Get the chromosome sizes for this simulation according to input parameters.
     genome_data_subset = GenomeData.getGenomeData(organism, sex);
+    karyotype = KaryotypeTable.getKaryotypeTable(organism, sex);
+    genome_states = new GenomeStateTable(karyotype);
+    division_kernel = new DivisionKernel(karyotype, genome_states);
     
     //Perform the simulation and generate an output file name
-    String name_of_results_file = runSimulation();
-    
+    String name_of_results_file;
+    SimulationEngine engine = input_parameters.getEngine() == CELL_ENGINE ? null : createEngine();
+    if(record_lineage_tree && (engine != null || input_parameters.getParallelMode() == PARALLEL_LINEAGES))
+      System.out.println("The lineage tree is only recorded by the cell engine dividing each timestep's cells together, no tree will be recorded");
+    if(engine != null && input_parameters.getDivisionProbability() < 1.0)
+      System.out.println("The division probability is only used by the cell engine, the selected engine will ignore it");
+    if(engine != null && input_parameters.getCommonRandomNumbers())
+      System.out.println("Common random numbers are only used by the cell engine, the selected engine will ignore them");
+    if(engine != null)
+      name_of_results_file = runEngine(engine);
+    else if(input_parameters.getParallelMode() == PARALLEL_LINEAGES)
+      name_of_results_file = runLineages();
+    else
+    {
+      name_of_results_file = runSimulation();
+      if(name_of_results_file != null)
+      {
+        final_population_size = cell_population.size();
+
+        // The population's storage lives only as long as the run, unless it is
+        // kept for analysis alongside the lineage tree
+        if(lineage_tree == null)
+          cell_population.close();
+      }
+    }
+    if(name_of_results_file == null)
+    {// Nothing was simulated, so there is nothing to summarise or analyse
+      System.out.println("Simulation abandoned, no results to analyse");
+      return;
+    }
     
     int lineage_count = 0;
     for(int number_of_cells: newest_generation)
@@ -90,9 +184,15 @@ public class Simulation implements Runnable
       System.out.println("Lineage " + lineage_count + "Highest generation = " + number_of_cells);
       lineage_count++;
     }
+    if(engine == null)
+    {// Engines other than the cell engine do not hold the final population
+      System.out.println("Final population size = " + final_population_size);
+    }
+    System.out.println("Random seed = " + random_streams.getSeed());
     
-    //Create a DataAnalysis object for this simulation
-    new DataAnalysis(name_of_results_file, genome_data_subset, organism,sex, newest_generation, initial_population_size);
+    //Create a DataAnalysis object for this simulation, unless the engine wrote its own summaries
+    if(engine == null || engine.writesRecords())
+      new DataAnalysis(name_of_results_file, genome_data_subset, organism,sex, newest_generation, initial_population_size);
     
     
     
@@ -107,18 +207,31 @@ public class Simulation implements Runnable
   /**
    * Track population dynamics of a dividing cell population.
    *
-   * 
+   * @return the name of the results file, or null if the initial population could not be created.
    */
   private String runSimulation()
   {
-    final String output_file_name = input_parameters.toString();
-    //Initialise a population to be used at the start of the simulation
-    cell_population = initiatePopulation(initial_population_size);
-    System.out.println("Running =>" + input_parameters.toString());
+    final String output_file_name = is_lineage_shard ? shardFileName(first_lineage) : input_parameters.toString();
+    System.out.println("Running =>" + output_file_name);
+    final boolean common_random_numbers = input_parameters.getCommonRandomNumbers();
+
+    // Divide each timestep's cells across a pool of threads when asked to, a 
+    // population spilled to disk can only be used by one thread at a time
+    ForkJoinPool pool = null;
+    ParallelTimestep parallel_timestep = null;
+    if(number_of_threads > 1 && input_parameters.getPopulationStorage() != SPILLING_STORAGE)
+    {
+      pool = new ForkJoinPool(number_of_threads);
+      parallel_timestep = new ParallelTimestep(pool, karyotype, genome_states, input_parameters.getDivisionProbability(), common_random_numbers ? random_streams : null);
+    }
+    else if(number_of_threads > 1)
+      System.out.println("A population spilled to disk is only used by one thread, the timesteps will be simulated serially");
 
     try
     {
-      try(FileWriter output_writer = new FileWriter(output_file_name)) 
+      //Initialise a population to be used at the start of the simulation
+      cell_population = initiatePopulation(initial_population_size);
+      try(RecordWriter output_writer = new RecordWriter(output_file_name, genome_states)) 
       {
         
         //output_writer.append(input_parameters.toString() + new_line + new_line);
@@ -127,273 +240,311 @@ public class Simulation implements Runnable
         for(int current_time = 0; current_time < simulation_duration; current_time+=time_interval)
         {// at each time interval - evaluate and track cell population dynamics
           System.out.println(current_time + " <--population size at beginning = " + cell_population.size());
-          Iterator<Cell> current_population = cell_population.iterator();
+          final long timestep_seed = random_streams.timestepSeed(first_lineage, current_time / time_interval);
+          final long division_seed = random_streams.divisionSeed(first_lineage, current_time / time_interval);
+          
+          if(parallel_timestep != null)
+          {
+            parallel_timestep.divide(cell_population, newest_generation, cell_id_allocator, lineage_tree, timestep_seed, division_seed, current_time + time_interval, output_writer);
+            System.out.println(current_time + " <--population size at end of timepoint = " + cell_population.size());
+            continue;
+          }
           
-          int mother_cell_index_tracker = 0;
-          while (current_population.hasNext()) 
-          {// for each cell in the current population
-            Cell mother_cell = current_population.next();
-            if(mother_cell.getDivisionStatus())
-            {// current cell can divide
-              
-              //Produce a random number, R, between 0 and 1. Divide if division threshold attained
-              //double number_between_zero_and_one = randomDouble();
-              double number_between_zero_and_one = 0.1;
+          // Only the cells present at the beginning of this time interval are
+          // evaluated, daughter cells appended during the interval divide in the next one
+          final int population_size_at_beginning = cell_population.size();
+          for(int partition_start = 0; partition_start < population_size_at_beginning; partition_start += ParallelTimestep.PARTITION_SIZE)
+          {// Reseed at the partition boundaries of the parallel timestep so that both give the same results
+            final long partition_seed = RandomStreams.partitionSeed(timestep_seed, partition_start >>> ParallelTimestep.PARTITION_SHIFT);
+            final int partition_end = Math.min(partition_start + ParallelTimestep.PARTITION_SIZE, population_size_at_beginning);
+            SplittableRandom segregation_random = new SplittableRandom(partition_seed);
+            
+            // Skip straight to the cells that reach the division threshold
+            DivisionSampler division_sampler = new DivisionSampler(input_parameters.getDivisionProbability(), 
+                RandomStreams.partitionSeed(division_seed, partition_start >>> ParallelTimestep.PARTITION_SHIFT));
+            for(int mother_cell_index = division_sampler.nextDividingCell(partition_start, partition_end); mother_cell_index < partition_end;
+                mother_cell_index = division_sampler.nextDividingCell(mother_cell_index + 1, partition_end))
+            {// for each dividing cell in the current population
+              // Mother cell becomes daughter cell one, in place
+              int index_of_daughter_cell_one = mother_cell_index;
+              int next_generation = cell_population.getGeneration(index_of_daughter_cell_one) + 1; 
+              cell_population.setGeneration(index_of_daughter_cell_one, next_generation);// Increase the cell's generation number - making it daughter cell one
 
-              if(number_between_zero_and_one < 0.2) //The cell can divide
-              {// If division threshold attained
-                
-                // Mother cell becomes daughter cell one
-                int next_generation = mother_cell.getGeneration() + 1; 
-                mother_cell.setGeneration(next_generation);// Increase the cell's generation number - making it daughter cell one
-                Cell daughter_cell_one = new Cell(mother_cell); // Perform a deep copy of the mother cell
-                
-      
-                // Create a new cell object which will become daughter cell 2, with a blank diploid genome, 
-                // of same generation and cell lineage as daughter cell one
-                int id_of_newly_created_cell = id_of_last_created_cell + 1;
-                int lineage_of_newly_created_cell = daughter_cell_one.getLineageId();
-                Cell new_cell = new  Cell(id_of_newly_created_cell, lineage_of_newly_created_cell, next_generation, -1, CAN_DIVIDE, blank_genome);
-                cell_population.add(new_cell);
-                
-                Cell daughter_cell_two = new Cell(new_cell);// Perform a deep copy of the new cell
-                
-                //Track the array indices of the two daughter cells
-                int index_of_daughter_cell_one, index_of_daughter_cell_two;
-                index_of_daughter_cell_one = mother_cell_index_tracker;
-                index_of_daughter_cell_two = cell_population.size()-1;
-                
-                //Mark unused cell variables for garbage collection
-                mother_cell = null; new_cell = null;
-                
-                // Keep track the latest generation of cells and the id of the last created cell
-                id_of_last_created_cell++;
-                if(daughter_cell_one.getGeneration() > newest_generation[daughter_cell_one.getLineageId()])
-                {newest_generation[daughter_cell_one.getLineageId()]++;}
-                
-                /*
-                // Perform S-phase for daughter cells
-                System.out.println("Main copies before S-Phase");
-                cell_population.get(index_of_daughter_cell_one).printGenomeStatus();
-                cell_population.get(index_of_daughter_cell_two).printGenomeStatus();
-                System.out.println(new_line);
-                
-                System.out.println("Second copies before S-Phase");
-                daughter_cell_one.printGenomeStatus();
-                daughter_cell_two.printGenomeStatus();
-                System.out.println(new_line);
-                */
-                
-                performSPhase(daughter_cell_one, daughter_cell_two);
-                
-                calculateCellFractionLabelled(daughter_cell_one);
-                calculateCellFractionLabelled(daughter_cell_two);
-                
-                output_writer.append(Integer.toString(daughter_cell_one.getCellId()) + tab+tab +Integer.toString(daughter_cell_one.getGeneration()) + tab+tab + Integer.toString(daughter_cell_one.getLineageId()) + tab+tab + Double.toString(daughter_cell_one.getFractionGenomeLabelled()) + new_line);                
+              // Append daughter cell 2 with a blank diploid genome, of same 
+              // generation and cell lineage as daughter cell one
+              long id_of_newly_created_cell = cell_ids.nextId();
+              int lineage_of_newly_created_cell = cell_population.getLineageId(index_of_daughter_cell_one);
+              int index_of_daughter_cell_two = cell_population.append(id_of_newly_created_cell, lineage_of_newly_created_cell, next_generation);
 
-                //output_writer.append(new_line + Integer.toString(daughter_cell_one.getCellId()) + tab+tab +Integer.toString(daughter_cell_one.getGeneration()) + tab+tab + Integer.toString(daughter_cell_one.getLineageId()) + tab+tab + Double.toString(daughter_cell_one.getFractionGenomeLabelled()) + new_line);                
-                output_writer.append(Integer.toString(daughter_cell_two.getCellId()) + tab+tab +Integer.toString(daughter_cell_two.getGeneration()) + tab+tab + Integer.toString(daughter_cell_two.getLineageId()) + tab+tab + Double.toString(daughter_cell_two.getFractionGenomeLabelled()) + new_line);
-                
-                cell_population.set(index_of_daughter_cell_one, daughter_cell_one);
-                cell_population.set(index_of_daughter_cell_two, daughter_cell_two);
+              // Keep track the latest generation of cells
+              if(next_generation > newest_generation[lineage_of_newly_created_cell - first_lineage])
+              {newest_generation[lineage_of_newly_created_cell - first_lineage]++;}
 
-                /*
-                System.out.println("Main copies after S-Phase");
-                cell_population.get(index_of_daughter_cell_one).printGenomeStatus();
-                cell_population.get(index_of_daughter_cell_two).printGenomeStatus();
-                System.out.println(new_line);
-                
-                System.out.println("Second copies after S-Phase");
-                daughter_cell_one.printGenomeStatus();
-                daughter_cell_two.printGenomeStatus();
-                System.out.println(new_line);System.out.println(new_line);
-                */
-              
-              }// If simulation threshold attained 
-            }// current cell can divide
-            else
-            {
-              // current cell cannot divide, do nothing
-            }// if current cell can divide - end of else
-            mother_cell_index_tracker++;
-          }// for each cell in the current population
+              // Replicate and segregate the genome, the labelled percentage of 
+              // each daughter is cached with its genome state
+              if(common_random_numbers)
+                division_kernel.performSPhase(cell_population, index_of_daughter_cell_one, index_of_daughter_cell_two, 
+                    random_streams.segregationSeed(lineage_of_newly_created_cell, next_generation - 1, mother_cell_index));
+              else
+                division_kernel.performSPhase(cell_population, index_of_daughter_cell_one, index_of_daughter_cell_two, segregation_random);
+              if(lineage_tree != null)
+                lineage_tree.recordDivision(index_of_daughter_cell_one, index_of_daughter_cell_two, current_time + time_interval);
+
+              output_writer.writeRecord(cell_population.getCellId(index_of_daughter_cell_one), next_generation, lineage_of_newly_created_cell, cell_population.getGenomeState(index_of_daughter_cell_one));
+              output_writer.writeRecord(id_of_newly_created_cell, next_generation, lineage_of_newly_created_cell, cell_population.getGenomeState(index_of_daughter_cell_two));
+            }// for each dividing cell in the current population
+          }// for each partition
 
           System.out.println(current_time + " <--population size at end of timepoint = " + cell_population.size());
         }// at each time interval
-      }// try(FileWriter writer
+      }// try(RecordWriter writer
     }// try block
     catch(IOException e)
     {
       System.out.println("Error writing to file for generation tracking results"+ e.getMessage());
     } 
-    return output_file_name; 
+    catch(UncheckedIOException e)
+    {// A population paged to disk could not be read or written
+      System.out.println("Error accessing the cell population file " + e.getMessage());
+    }
+    finally
+    {
+      if(pool != null)
+        pool.shutdown();
+    }
+    return cell_population == null ? null : output_file_name; 
   }// runSimulation
   
   /**
-   * Models DNA synthesis during S-Phase, takes the genome from a mother cell 
-   * (daughter_cell_one) and produces two genomes for two daughter cells; also 
-   * handles stochastic chromosome segregation into daughter cell one or two.
+   * Creates the engine selected through SimulationData.
+   */
+  private SimulationEngine createEngine()
+  {
+    switch(input_parameters.getEngine())
+    {
+      case HISTOGRAM_ENGINE:
+        return new HistogramEngine(input_parameters, karyotype, genome_states, random_streams);
+      case EXACT_ENGINE:
+        return new ExactDistributionEngine(input_parameters, karyotype);
+      case MEAN_FIELD_ENGINE:
+        return new MeanFieldEngine(input_parameters, karyotype);
+      case SAMPLED_ENGINE:
+        return new SampledLineageEngine(input_parameters, karyotype, genome_states, random_streams, cell_id_allocator);
+      case TEMPLATE_STRAND_ENGINE:
+        return new TemplateStrandEngine(input_parameters, karyotype, genome_states, random_streams, cell_id_allocator);
+      case EVENT_ENGINE:
+        return new EventDrivenEngine(input_parameters, karyotype, genome_states, random_streams, cell_id_allocator);
+      case STOCHASTIC_RATE_ENGINE:
+        return new StochasticRateEngine(input_parameters, karyotype, genome_states, random_streams, cell_id_allocator);
+      case IMPORTANCE_ENGINE:
+        return new ImportanceSamplingEngine(input_parameters, karyotype, genome_states, random_streams);
+      default:
+        throw new IllegalArgumentException("Unknown simulation engine " + input_parameters.getEngine());
+    }
+  }// createEngine
+  
+  /**
+   * Runs the simulation on an engine other than the cell by cell division loop.
    * 
-   * @param cell_one the Cell daughter cell one
-   * @param cell_two the Cell daughter cell two
+   * @return the name of the results file.
    */
-  private void performSPhase(Cell daughter_cell_one, Cell daughter_cell_two)
+  private String runEngine(SimulationEngine engine)
   {
-    double[][][] temp_genome_one = daughter_cell_one.getGenome(), temp_genome_two = newEmptyDiploidGenome();
-
-    for (int homologous_pair_count = 0; homologous_pair_count < temp_genome_one.length; homologous_pair_count++)
-    {// foreach homologous pair of the genome
-      for (int chromosome_count = 0; chromosome_count < temp_genome_one[homologous_pair_count].length; chromosome_count++)
-      {// for each chromosome in each homologous pair
-        for (int dna_strand_count = 0; dna_strand_count < temp_genome_one[homologous_pair_count][chromosome_count].length; dna_strand_count++)
-        {// for each DNA strand in the chromosome
-          
-          /* For each dna strand in this chromosome
-          New strands will be formed such that the new combinations of double
-          stranded DNA will be OS-NS and NS-OS (OS=Original Strand,
-          NS=New Strand). The logic to produce these combinations of double
-          stranded DNA is handled here.
-          */
-
-          if(dna_strand_count == 1)
-          {// Ignore the first strand, do this on the iteration for the second strand
-            temp_genome_two[homologous_pair_count][chromosome_count][dna_strand_count] = temp_genome_one[homologous_pair_count][chromosome_count][dna_strand_count];
-            temp_genome_two[homologous_pair_count][chromosome_count][dna_strand_count-1] = 1.0;
-            temp_genome_one[homologous_pair_count][chromosome_count][dna_strand_count]=1.0;
-          }// If the second DNA strand
-        }// for each DNA strand
-        
-        // Perform the logic to model stochastic distribution of each double
-        // stranded DNA complex into daughter cells
-        if(chromosome_count==1)
-        {// Is this the second homologous chromosome, perform stochastic segregation of chromosomes into daughter cells
-          double new_zero_to_one = randomDouble();
-          //double new_zero_to_one = 0.4;
-          
-          if(new_zero_to_one >= 0.5)
-          {// swap the chromosome between genomes
-            double[] temp_chromosome_one, temp_chromosome_two;
-
-            // Set the values of the temp chromosomes to the current chromosomes
-            // being evaluated from each chromosome
-            temp_chromosome_one = temp_genome_one[homologous_pair_count][chromosome_count];
-            temp_chromosome_two = temp_genome_two[homologous_pair_count][chromosome_count];
-     
-            // Swap the chromosomes
-            temp_genome_one[homologous_pair_count][chromosome_count] = temp_chromosome_two;
-            temp_genome_two[homologous_pair_count][chromosome_count] = temp_chromosome_one;
-            
-          }else
-          {//Don't swap chromosomes
-          }
-        }// If second homologous chromosome
-      }// for each chromosome in each homologous pair
-    }// foreach homologous pair of the genome
-
-    // Write the new genomes back into the corresponding daughter cells
-    daughter_cell_one.setGenome(temp_genome_one);
-    daughter_cell_two.setGenome(temp_genome_two);
-  }// performSPhase
+    final String output_file_name = input_parameters.toString();
+    System.out.println("Running on " + engine.getClass().getSimpleName() + " =>" + output_file_name);
+    try(RecordWriter output_writer = new RecordWriter(output_file_name, genome_states)) 
+    {
+      engine.simulate(output_writer, newest_generation);
+    }
+    catch(IOException e)
+    {
+      System.out.println("Error writing to file for generation tracking results"+ e.getMessage());
+    }
+    return output_file_name;
+  }// runEngine
   
-   /**
-   * Calculates the label percentage in a cell's genome.
+  /**
+   * Simulates each founder lineage as a separate task on a pool of threads.
+   * Lineages never interact, so each runs the serial loop over its own 
+   * population with the random number streams keyed by its lineage, and 
+   * writes its own results shard with cell IDs from its own range. The shards
+   * are concatenated into the results file in lineage order and the 
+   * per-lineage statistics merged, so the results file is the same whatever 
+   * the number of threads.
    * 
-   * @param cell the Cell whose percentage genome is being calculated
+   * @return the name of the results file, or null if a lineage could not be simulated or the shards merged.
    */
-  private void calculateCellFractionLabelled(Cell cell)
+  private String runLineages()
   {
-    double[][] chromosome_labelled_bases = new double[haploid_number][2];
-    long total_labelled_bases_in_genome, total_number_of_bases_in_genome;
-      
-    total_labelled_bases_in_genome = 0;
-    total_number_of_bases_in_genome = GenomeData.getGenomeSize(organism, sex);
-
+    final String output_file_name = input_parameters.toString();
+    System.out.println("Running lineages separately =>" + output_file_name);
     
+    // Founder cell IDs equal their lineage IDs, as in the serial simulation
+    cell_id_allocator.claimRange(initial_population_size);
+    List<Simulation> lineages = new ArrayList<>(initial_population_size);
+    for(int lineage = 0; lineage < initial_population_size; lineage++)
+    {
+      lineages.add(new Simulation(this, lineage));
+    }
     
-    for(int homologous_pair_count = 0; homologous_pair_count < cell.getGenome().length; homologous_pair_count++)
-    {// For each homologous pair
-      double chromo_labelled_bases;
-      for(int chromosome_count = 0; chromosome_count < cell.getGenome()[homologous_pair_count].length; chromosome_count++)
-      {// For each chromosome in a homologous pair
-        int chromosome_size;
-        String[] split_chromosome_sizes = genome_data_subset.get(homologous_pair_count).split(",");
-        if(chromosome_count==0)
-        {//Homologous chromosome one
-          chromosome_size = Integer.parseInt(split_chromosome_sizes[0]);
-        }else
-        {//Homologous chromosome two
-          chromosome_size = Integer.parseInt(split_chromosome_sizes[1]);
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, input_parameters.getNumberOfThreads()));
+    List<Future<String>> shard_file_names = new ArrayList<>(initial_population_size);
+    boolean merged = false;
+    try
+    {
+      for(Simulation lineage_simulation : lineages)
+      {
+        shard_file_names.add(pool.submit(lineage_simulation::runLineage));
+      }
+      
+      try(OutputStream output_stream = new FileOutputStream(output_file_name))
+      {
+        for(int lineage = 0; lineage < initial_population_size; lineage++)
+        {// Merge each lineage's results and statistics, in lineage order
+          String shard_file_name = shard_file_names.get(lineage).get();
+          Files.copy(Paths.get(shard_file_name), output_stream);
+          Files.delete(Paths.get(shard_file_name));
+          newest_generation[lineage] = lineages.get(lineage).newest_generation[0];
+          final_population_size += lineages.get(lineage).final_population_size;
         }
-        for(int dna_strand_count = 0; dna_strand_count < cell.getGenome()[homologous_pair_count][chromosome_count].length; dna_strand_count++)
-        {// For each DNA strand in the chromosome 
-          double bases_labelled_on_strand = cell.getGenome()[homologous_pair_count][chromosome_count][dna_strand_count];
-          total_labelled_bases_in_genome += bases_labelled_on_strand*(double)chromosome_size; 
-          chromo_labelled_bases =(bases_labelled_on_strand*(double)chromosome_size);    
-          chromosome_labelled_bases[homologous_pair_count][chromosome_count] = chromo_labelled_bases;
-        }// For each DNA strand
-      }// For each chromosome in a homologous pair
-    }// For each homologous pair
-    cell.setFractionGenomeLabelled(((total_labelled_bases_in_genome/(double)total_number_of_bases_in_genome)*100));
-  }// calculateCellFractionLabelled
+      }
+      merged = true;
+    }
+    catch(IOException e)
+    {
+      System.out.println("Error merging the lineage results files " + e.getMessage());
+    }
+    catch(InterruptedException | ExecutionException e)
+    {
+      System.out.println("Error simulating the lineages " + e.getMessage());
+    }
+    finally
+    {
+      if(merged)
+        pool.shutdown();
+      else
+        abandonLineages(pool, shard_file_names, output_file_name);
+    }
+    return merged ? output_file_name : null;
+  }// runLineages
   
   /**
-   *
+   * Cleans up after a lineage-partitioned simulation that failed: cancels the
+   * lineages still queued, waits for those already running, then deletes every
+   * results shard and the partly merged results file.
+   */
+  private void abandonLineages(ForkJoinPool pool, List<Future<String>> shard_file_names, String output_file_name)
+  {
+    for(Future<String> shard_file_name : shard_file_names)
+    {
+      shard_file_name.cancel(true);
+    }
+    pool.shutdownNow();
+    try
+    {
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    catch(InterruptedException e)
+    {// Clean up what can be, and leave the interrupt for the caller
+      Thread.currentThread().interrupt();
+    }
+    
+    try
+    {
+      for(int lineage = 0; lineage < initial_population_size; lineage++)
+      {
+        Files.deleteIfExists(Paths.get(shardFileName(lineage)));
+      }
+      Files.deleteIfExists(Paths.get(output_file_name));
+    }
+    catch(IOException e)
+    {
+      System.out.println("Error deleting the lineage results files " + e.getMessage());
+    }
+  }// abandonLineages
+  
+  /**
+   * Provides the name of the results shard of one lineage simulated separately.
    */
-  private static double randomDouble()
+  private String shardFileName(int lineage)
   {
-    Random rand = new Random();
-    return rand.nextDouble();
-  }// randomDouble
+    return input_parameters.toString() + " - Lineage " + lineage;
+  }// shardFileName
   
   /**
-   * Creates and returns an empty three dimensional array to store a diploid genome.
+   * Simulates one lineage of a lineage-partitioned simulation.
+   * 
+   * @return the name of the lineage's results shard.
+   * @throws IllegalStateException if the lineage's population could not be created.
    */
-  private double[][][] newEmptyDiploidGenome()
+  private String runLineage()
   {
-    double[][][] diploid_genome = new double[haploid_number][2][2]; // The karyotype of the cell, 3 dimensional array to store discrete values for each  chromosome -> each homologous pair of chromosomes -> 2 complementary DNA strands
-    return diploid_genome;
-  }// newEmptydiploidGenome()
-    
+    String shard_file_name = runSimulation();
+    if(shard_file_name == null)
+      throw new IllegalStateException("The population of lineage " + first_lineage + " could not be created");
+    final_population_size = cell_population.size();
+    cell_population.close();
+    return shard_file_name;
+  }// runLineage
+  
   /**
-   * Creates and returns an array list of the initial population of cells.
+   * Creates and returns the initial population of cells.
    * The total number of cells in the population is determined by the integer 'population_size'
    */
-  private CopyOnWriteArrayList<Cell> initiatePopulation(int required_population_size)
+  private CellPopulation initiatePopulation(int required_population_size) throws IOException
   {
-    CopyOnWriteArrayList<Cell> population = new CopyOnWriteArrayList<>(); //Define an arraylist to hold the initial population of cells
-    
+    // Define a population to hold the initial population of cells, with room
+    // for the doublings expected during the simulation
+    CellPopulation population;
+    cell_ids = cell_id_allocator.newIdBlock();
+    lineage_tree = record_lineage_tree ? new LineageTree() : null;
+    long first_cell_id = is_lineage_shard ? first_lineage : cell_id_allocator.claimRange(required_population_size);
+    if(input_parameters.getPopulationStorage() == OFF_HEAP_STORAGE)
+      population = new OffHeapCellPopulation(haploid_number);
+    else if(input_parameters.getPopulationStorage() == SPILLING_STORAGE)
+      population = new SpillingCellPopulation(haploid_number, new File(input_parameters.getScratchDirectory()));
+    else
+      population = new HeapCellPopulation(haploid_number, required_population_size); 
         
     // Create the starting population of cells, setting all cells to generation 0
     for (int this_cell = 0; this_cell < required_population_size; this_cell++)
     {
-      EmptyDiploidGenome diploid_genome_creator = new EmptyDiploidGenome(haploid_number);
-      double[][][] diploid_genome = diploid_genome_creator.getGenome();
-    
-      int cell_generation = this.newest_generation[this_cell] + 1, last_div = -1;
-      // Fill the empty genome with unlabelled DNA strands
-      for(double[][] homologous_pair : diploid_genome) 
-      {// foreach homologous pair of the genome
-        for(double[] chromosome : homologous_pair) 
-        {// for each chromosome in each homologous pair
-          for(int dna_strand_count = 0; dna_strand_count < chromosome.length; dna_strand_count++) 
-          {// for each dna strand in this chromosome
-            chromosome[dna_strand_count] = STRAND_UNLABELLED;
-            //System.out.println(Double.toString(STRAND_UNLABELLED));
-          }
-        }
-      }
+      int cell_generation = this.newest_generation[this_cell] + 1;
+      long cell_id = first_cell_id + this_cell;
       
-      int cell_id = this_cell;
-      
-      // Create a new Cell object, cell IDs ranging from 0 to population size, cell
+      // Append a new cell, cell IDs ranging from 0 to population size, cell
       // lineage IDs are also identical to the cell IDs of each cell in the initial
       // population, all generation 0 with an unlabelled diploid genome
-      population.add(new  Cell(cell_id, cell_id, cell_generation, last_div, CAN_DIVIDE, diploid_genome)); 
-      id_of_last_created_cell = cell_id; // Track the id of the last created cell
+      population.append(cell_id, first_lineage + this_cell, cell_generation); 
+      if(lineage_tree != null)
+        lineage_tree.addFounder(0);
       this.newest_generation[this_cell]++;
     }// for
     return population;
-  }// initiate_first_population()
+  }// initiatePopulation()
  
   //*** Access methods ***//
+  
+  /**
+   * Provides read access to the final cell population. Unless the lineage tree
+   * was recorded the population is closed at the end of the run, and lineages
+   * simulated separately close their own populations.
+   *
+   * @return the cell population of this simulation.
+   */
+  public CellPopulation getCellPopulation()
+  {
+    return this.cell_population;
+  }// getCellPopulation
+  
+  /**
+   * Provides read access to the lineage tree, whose leaves are the cells of the
+   * final population (see LineageTree.getCellNode).
+   *
+   * @return the lineage tree of this simulation, or null if it was not asked for or the engine or parallel mode does not record one.
+   */
+  public LineageTree getLineageTree()
+  {
+    return this.lineage_tree;
+  }// getLineageTree
 }
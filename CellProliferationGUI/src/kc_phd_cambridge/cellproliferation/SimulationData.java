@@ -15,6 +15,8 @@
  */
 package kc_phd_cambridge.cellproliferation;
 
+import java.util.SplittableRandom;
+
 /**
  * Class for the storage of user input parameters.
  * 
@@ -30,6 +32,24 @@ public class SimulationData
   private final String organism;
   private final int sex, initial_population_size, simulation_duration, time_interval, haploid_number;
   
+  // Optional parameters, not set through the user interface
+  private int population_storage = Simulation.HEAP_STORAGE;
+  private String scratch_directory = System.getProperty("java.io.tmpdir"); // Where a population paged to disk is kept
+  private boolean record_lineage_tree = false;
+  private int number_of_threads = 1;
+  private int parallel_mode = Simulation.PARALLEL_TIMESTEPS;
+  private int engine = Simulation.CELL_ENGINE;
+  private int tracked_cells = 1 << 16; // The most cells followed in each lineage by the sampled engine
+  private double cell_cycle_spread = 0.0; // The relative spread of cell-cycle times in the event-driven engine
+  private double cell_doubling_rate = 1.0; // Divisions per dividing cell per unit of time in the stochastic rate engine
+  private double percentage_of_dividing_cells = 100.0; // The percentage of founders able to divide in the stochastic rate engine
+  private double division_probability = 1.0; // The probability that a cell divides in a time interval of the cell engine
+  private int sampled_paths = 1 << 16; // The lines of descent drawn per lineage by the importance sampling engine
+  private double importance_bias = 0.5; // The probability of guiding a homologous pair in the importance sampling engine
+  private double descent_bias = 0.5; // The probability of guiding a line of descent in the importance sampling engine
+  private long random_seed = new SplittableRandom().nextLong(); // Every random number stream of the run is derived from it
+  private boolean common_random_numbers = false; // Whether the cell engine keys each division's segregation by its cell rather than its partition
+  
   // Constructor
   public SimulationData(String new_org, int new_sex, int new_init_pop_size, int new_sim_dur, int new_interval, int new_haploid_number)
   {  
@@ -98,6 +118,383 @@ public class SimulationData
     return this.haploid_number;
   }// getHaploidNumber() 
   
+  /**
+   * Provides read access to where the simulated cell population is stored
+   *
+   * @return Simulation.HEAP_STORAGE, Simulation.OFF_HEAP_STORAGE or Simulation.SPILLING_STORAGE.
+   */
+  public int getPopulationStorage()
+  {
+    return this.population_storage;
+  }// getPopulationStorage
+  
+  /**
+   * Allows the storage of the simulated cell population to be changed. Off-heap
+   * storage keeps the cell records in native memory, out of reach of the 
+   * garbage collector, for populations too large for the Java heap. Spilling
+   * storage pages the cell records to a file under the scratch directory, for
+   * populations too large for memory.
+   *
+   * @param new_population_storage Simulation.HEAP_STORAGE (default), Simulation.OFF_HEAP_STORAGE or Simulation.SPILLING_STORAGE.
+   */
+  public void setPopulationStorage(int new_population_storage)
+  {
+    this.population_storage = new_population_storage;
+  }// setPopulationStorage
+  
+  /**
+   * Provides read access to the directory a population paged to disk is kept under
+   *
+   * @return the path of the scratch directory.
+   */
+  public String getScratchDirectory()
+  {
+    return this.scratch_directory;
+  }// getScratchDirectory
+  
+  /**
+   * Allows the directory a population paged to disk is kept under to be changed
+   *
+   * @param new_scratch_directory the path of the scratch directory, the system temporary directory by default.
+   */
+  public void setScratchDirectory(String new_scratch_directory)
+  {
+    this.scratch_directory = new_scratch_directory;
+  }// setScratchDirectory
+  
+  /**
+   * Provides read access to whether the simulation records its lineage tree
+   *
+   * @return true if every division is recorded in a LineageTree.
+   */
+  public boolean getRecordLineageTree()
+  {
+    return this.record_lineage_tree;
+  }// getRecordLineageTree
+  
+  /**
+   * Allows recording of the lineage tree to be switched on or off. The tree
+   * costs 16 bytes per division. When it is recorded the final population is 
+   * kept after the run for analysis alongside the tree, and must be closed by
+   * the caller once it is no longer needed. Only the cell engine dividing each
+   * timestep's cells together records the tree; with another engine, or with
+   * lineages simulated separately, no tree is recorded and a note is logged.
+   *
+   * @param new_record_lineage_tree true to record every division, false (default) otherwise.
+   */
+  public void setRecordLineageTree(boolean new_record_lineage_tree)
+  {
+    this.record_lineage_tree = new_record_lineage_tree;
+  }// setRecordLineageTree
+  
+  /**
+   * Provides read access to the number of threads dividing the cells of each timestep
+   *
+   * @return the number of threads.
+   */
+  public int getNumberOfThreads()
+  {
+    return this.number_of_threads;
+  }// getNumberOfThreads
+  
+  /**
+   * Allows the number of threads dividing the cells of each timestep to be
+   * changed. The results do not depend on the number of threads. A population
+   * spilled to disk is always divided by a single thread.
+   *
+   * @param new_number_of_threads the number of threads, 1 (default) for the serial loop.
+   */
+  public void setNumberOfThreads(int new_number_of_threads)
+  {
+    this.number_of_threads = new_number_of_threads;
+  }// setNumberOfThreads
+  
+  /**
+   * Provides read access to how the work of the simulation is shared between threads
+   *
+   * @return Simulation.PARALLEL_TIMESTEPS or Simulation.PARALLEL_LINEAGES.
+   */
+  public int getParallelMode()
+  {
+    return this.parallel_mode;
+  }// getParallelMode
+  
+  /**
+   * Allows the way the work of the simulation is shared between threads to be
+   * changed. With PARALLEL_TIMESTEPS the cells of each timestep are divided
+   * between the threads. With PARALLEL_LINEAGES each founder lineage is 
+   * simulated as a separate task with its own population, generator and 
+   * results shard; the lineage tree is not recorded in this mode.
+   *
+   * @param new_parallel_mode Simulation.PARALLEL_TIMESTEPS (default) or Simulation.PARALLEL_LINEAGES.
+   */
+  public void setParallelMode(int new_parallel_mode)
+  {
+    this.parallel_mode = new_parallel_mode;
+  }// setParallelMode
+  
+  /**
+   * Provides read access to the engine that simulates the run
+   *
+   * @return one of the Simulation engine "enums".
+   */
+  public int getEngine()
+  {
+    return this.engine;
+  }// getEngine
+  
+  /**
+   * Allows the engine that simulates the run to be changed. CELL_ENGINE 
+   * divides every cell; HISTOGRAM_ENGINE divides counts of cells sharing a 
+   * lineage, generation and genome state; EXACT_ENGINE computes the exact
+   * distribution of each generation without simulating any cell; 
+   * MEAN_FIELD_ENGINE computes only the mean and variance of each generation;
+   * SAMPLED_ENGINE follows a weighted sample of at most getTrackedCells() 
+   * cells per lineage; TEMPLATE_STRAND_ENGINE divides only the cells carrying
+   * unlabelled template strands and counts the fully labelled rest;
+   * EVENT_ENGINE takes divisions off a queue of next-division times, with
+   * cell-cycle times spread by getCellCycleSpread(); STOCHASTIC_RATE_ENGINE
+   * divides getPercentageOfDividingCells() of the founders and their progeny
+   * asynchronously at getCellDoublingRate(); IMPORTANCE_ENGINE draws
+   * getSampledPaths() lines of descent per lineage, biased by
+   * getImportanceBias() and getDescentBias() towards cells keeping their
+   * unlabelled DNA.
+   *
+   * @param new_engine Simulation.CELL_ENGINE (default), Simulation.HISTOGRAM_ENGINE, Simulation.EXACT_ENGINE, Simulation.MEAN_FIELD_ENGINE, Simulation.SAMPLED_ENGINE, Simulation.TEMPLATE_STRAND_ENGINE, Simulation.EVENT_ENGINE, Simulation.STOCHASTIC_RATE_ENGINE or Simulation.IMPORTANCE_ENGINE.
+   */
+  public void setEngine(int new_engine)
+  {
+    this.engine = new_engine;
+  }// setEngine
+  
+  /**
+   * Provides read access to the most cells followed in each lineage by the sampled engine
+   *
+   * @return the cap of tracked cells per lineage.
+   */
+  public int getTrackedCells()
+  {
+    return this.tracked_cells;
+  }// getTrackedCells
+  
+  /**
+   * Allows the most cells followed in each lineage by the sampled engine to be changed
+   *
+   * @param new_tracked_cells the cap of tracked cells per lineage, 65536 by default.
+   * @throws IllegalArgumentException if the cap is below 1.
+   */
+  public void setTrackedCells(int new_tracked_cells)
+  {
+    if(new_tracked_cells < 1)
+      throw new IllegalArgumentException("At least one cell must be tracked per lineage, not " + new_tracked_cells);
+    this.tracked_cells = new_tracked_cells;
+  }// setTrackedCells
+  
+  /**
+   * Provides read access to the relative spread of cell-cycle times in the event-driven engine
+   *
+   * @return the spread, cycle times are drawn uniformly from time interval x (1 +/- spread).
+   */
+  public double getCellCycleSpread()
+  {
+    return this.cell_cycle_spread;
+  }// getCellCycleSpread
+  
+  /**
+   * Allows the relative spread of cell-cycle times in the event-driven engine to be changed
+   *
+   * @param new_cell_cycle_spread the spread, from 0 (default, every cell divides once per time interval) to below 1.
+   * @throws IllegalArgumentException if the spread is outside [0, 1), which would allow cycle times of zero or less.
+   */
+  public void setCellCycleSpread(double new_cell_cycle_spread)
+  {
+    if(!(new_cell_cycle_spread >= 0.0 && new_cell_cycle_spread < 1.0))
+      throw new IllegalArgumentException("The cell-cycle spread must be from 0 to below 1, not " + new_cell_cycle_spread);
+    this.cell_cycle_spread = new_cell_cycle_spread;
+  }// setCellCycleSpread
+  
+  /**
+   * Provides read access to the division rate of dividing cells in the stochastic rate engine
+   *
+   * @return the expected number of divisions per dividing cell per unit of time.
+   */
+  public double getCellDoublingRate()
+  {
+    return this.cell_doubling_rate;
+  }// getCellDoublingRate
+  
+  /**
+   * Allows the division rate of dividing cells in the stochastic rate engine to be changed
+   *
+   * @param new_cell_doubling_rate the expected number of divisions per dividing cell per unit of time, 1 by default.
+   * @throws IllegalArgumentException if the rate is negative or not finite.
+   */
+  public void setCellDoublingRate(double new_cell_doubling_rate)
+  {
+    if(!(new_cell_doubling_rate >= 0.0 && new_cell_doubling_rate < Double.POSITIVE_INFINITY))
+      throw new IllegalArgumentException("The cell doubling rate must be a finite rate of 0 or more, not " + new_cell_doubling_rate);
+    this.cell_doubling_rate = new_cell_doubling_rate;
+  }// setCellDoublingRate
+  
+  /**
+   * Provides read access to the percentage of founders able to divide in the stochastic rate engine
+   *
+   * @return the percentage of dividing founders, between 0 and 100.
+   */
+  public double getPercentageOfDividingCells()
+  {
+    return this.percentage_of_dividing_cells;
+  }// getPercentageOfDividingCells
+  
+  /**
+   * Allows the percentage of founders able to divide in the stochastic rate engine to be changed
+   *
+   * @param new_percentage_of_dividing_cells the percentage of dividing founders, 100 by default.
+   * @throws IllegalArgumentException if the percentage is outside [0, 100].
+   */
+  public void setPercentageOfDividingCells(double new_percentage_of_dividing_cells)
+  {
+    if(!(new_percentage_of_dividing_cells >= 0.0 && new_percentage_of_dividing_cells <= 100.0))
+      throw new IllegalArgumentException("The percentage of dividing cells must be from 0 to 100, not " + new_percentage_of_dividing_cells);
+    this.percentage_of_dividing_cells = new_percentage_of_dividing_cells;
+  }// setPercentageOfDividingCells
+  
+  /**
+   * Provides read access to the probability that a cell divides in a time interval of the cell engine
+   *
+   * @return the division probability, between 0 and 1.
+   */
+  public double getDivisionProbability()
+  {
+    return this.division_probability;
+  }// getDivisionProbability
+  
+  /**
+   * Allows the probability that a cell divides in a time interval of the cell engine to be changed
+   *
+   * @param new_division_probability the division probability, 1 (default, every cell divides) or lower.
+   */
+  public void setDivisionProbability(double new_division_probability)
+  {
+    this.division_probability = new_division_probability;
+  }// setDivisionProbability
+  
+  /**
+   * Provides read access to the lines of descent drawn per lineage by the importance sampling engine
+   *
+   * @return the number of lines per lineage.
+   */
+  public int getSampledPaths()
+  {
+    return this.sampled_paths;
+  }// getSampledPaths
+  
+  /**
+   * Allows the lines of descent drawn per lineage by the importance sampling engine to be changed
+   *
+   * @param new_sampled_paths the number of lines per lineage, 65536 by default.
+   * @throws IllegalArgumentException if the number of lines is below 1.
+   */
+  public void setSampledPaths(int new_sampled_paths)
+  {
+    if(new_sampled_paths < 1)
+      throw new IllegalArgumentException("At least one line of descent must be drawn per lineage, not " + new_sampled_paths);
+    this.sampled_paths = new_sampled_paths;
+  }// setSampledPaths
+  
+  /**
+   * Provides read access to the probability of guiding a homologous pair in the importance sampling engine
+   *
+   * @return the probability that a line keeps the template strands of a pair together, 0 for unbiased segregation.
+   */
+  public double getImportanceBias()
+  {
+    return this.importance_bias;
+  }// getImportanceBias
+  
+  /**
+   * Allows the probability of guiding a homologous pair in the importance sampling engine to be changed
+   *
+   * @param new_importance_bias the probability, from 0 to below 1, 0.5 by default.
+   * @throws IllegalArgumentException if the probability is outside [0, 1), which would give infinite or negative weights.
+   */
+  public void setImportanceBias(double new_importance_bias)
+  {
+    if(!(new_importance_bias >= 0.0 && new_importance_bias < 1.0))
+      throw new IllegalArgumentException("The importance bias must be from 0 to below 1, not " + new_importance_bias);
+    this.importance_bias = new_importance_bias;
+  }// setImportanceBias
+  
+  /**
+   * Provides read access to the probability of guiding a line of descent in the importance sampling engine
+   *
+   * @return the probability that a line follows the first chromosomes' template strands, 0 for unbiased lines.
+   */
+  public double getDescentBias()
+  {
+    return this.descent_bias;
+  }// getDescentBias
+  
+  /**
+   * Allows the probability of guiding a line of descent in the importance sampling engine to be changed
+   *
+   * @param new_descent_bias the probability, from 0 to below 1, 0.5 by default.
+   * @throws IllegalArgumentException if the probability is outside [0, 1), which would give infinite or negative weights.
+   */
+  public void setDescentBias(double new_descent_bias)
+  {
+    if(!(new_descent_bias >= 0.0 && new_descent_bias < 1.0))
+      throw new IllegalArgumentException("The descent bias must be from 0 to below 1, not " + new_descent_bias);
+    this.descent_bias = new_descent_bias;
+  }// setDescentBias
+  
+  /**
+   * Provides read access to the seed every random number stream of the run is derived from
+   *
+   * @return the seed, drawn at random when the parameters were created unless it was set.
+   */
+  public long getRandomSeed()
+  {
+    return this.random_seed;
+  }// getRandomSeed
+  
+  /**
+   * Allows the seed every random number stream of the run is derived from to be changed, 
+   * a run with the same parameters and seed gives bit-identical results
+   *
+   * @param new_random_seed the seed.
+   */
+  public void setRandomSeed(long new_random_seed)
+  {
+    this.random_seed = new_random_seed;
+  }// setRandomSeed
+  
+  /**
+   * Provides read access to whether the cell engine draws common random numbers
+   *
+   * @return true if the segregation of each division is keyed by the lineage, generation and population index of the mother cell.
+   */
+  public boolean getCommonRandomNumbers()
+  {
+    return this.common_random_numbers;
+  }// getCommonRandomNumbers
+  
+  /**
+   * Allows the cell engine's segregation random numbers to be shared with related runs. 
+   * With common random numbers, each division of a cell flips its coins from
+   * a stream keyed by the seed and the lineage, generation and population 
+   * index of the mother cell, so runs of different organisms or sexes given 
+   * the same seed and division parameters segregate the same pairs of the same
+   * cells alike. Comparing such paired runs cancels most of the Monte Carlo
+   * noise in the difference between them.
+   *
+   * @param new_common_random_numbers true to key segregation by cell, false (default) to draw it from each partition's generator.
+   */
+  public void setCommonRandomNumbers(boolean new_common_random_numbers)
+  {
+    this.common_random_numbers = new_common_random_numbers;
+  }// setCommonRandomNumbers
+  
   /**
    * Provide read access to a string representation of this input parameter set
    *
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.IOException;
+
+/**
+ * An alternative to Simulation's cell by cell division loop.
+ *
+ * An engine simulates every timestep of a run and writes records to the
+ * results file in the format read by DataAnalysis. A record may stand for more
+ * than one cell, or for a cell with an importance weight, by carrying a weight
+ * after the labelled percentage. An engine is selected through
+ * SimulationData.setEngine and is created by Simulation once the karyotype
+ * and genome state table of the run are known.
+ *
+ * @see kc_phd_cambridge.cellproliferation.Simulation
+ * @see kc_phd_cambridge.cellproliferation.DataAnalysis
+ * @author Kyata Chibalabala
+ */
+public interface SimulationEngine
+{
+  /**
+   * Simulates the run.
+   *
+   * @param output_writer the writer of the results file.
+   * @param newest_generation the most recent generation of each lineage, updated as the run proceeds.
+   * @throws IOException if the records could not be written.
+   */
+  void simulate(RecordWriter output_writer, int[] newest_generation) throws IOException;
+
+  /**
+   * Tells whether the engine writes cell records for DataAnalysis, or writes
+   * its own summary files instead.
+   *
+   * @return true (default) if the results file should be analysed by DataAnalysis.
+   */
+  default boolean writesRecords()
+  {
+    return true;
+  }// writesRecords
+}// SimulationEngine
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/**
+ * Cell population paged to a file under a scratch directory.
+ *
+ * Cells are grouped into cohorts of CELLS_PER_CHUNK consecutive records and
+ * each cohort is one region of a memory-mapped file. Only a few cohort windows
+ * are mapped at a time. During a timestep the simulation walks the mother
+ * cells in index order and appends daughters to the end, so one window moves
+ * forward through the existing cohorts while another follows the tail. Both
+ * streams run sequentially through the file, which keeps the I/O close to disk
+ * bandwidth. The least recently used window is the one replaced, so the mother
+ * cohort stays mapped while the tail moves on, and a replaced window is forced
+ * to disk and unmapped straight away rather than when it is collected.
+ *
+ * The file and its directory are deleted when the population is closed.
+ *
+ * The window cache is not synchronised, so unlike the other populations a
+ * spilled population must only be used by one thread at a time.
+ *
+ * @see kc_phd_cambridge.cellproliferation.ChunkedCellPopulation
+ * @author Kyata Chibalabala
+ */
+public class SpillingCellPopulation extends ChunkedCellPopulation
+{
+  // Class variables
+  private static final int RESIDENT_WINDOWS = 4; // The mother cohort and the tail cohort, with room to spare
+
+  // Instance variables
+  private final File scratch_directory, population_file;
+  private final RandomAccessFile population_file_access;
+  private final FileChannel population_channel;
+  private final int[] window_chunks = new int[RESIDENT_WINDOWS]; // The cohort held by each window, -1 if none
+  private final MappedByteBuffer[] windows = new MappedByteBuffer[RESIDENT_WINDOWS];
+  private final long[] window_last_used = new long[RESIDENT_WINDOWS]; // The access count when each window was last used
+  private long window_accesses = 0;
+
+  /**
+   * Constructor, creates the population file in a new directory under the scratch directory.
+   *
+   * @param new_haploid_number the haploid number of the organism whose cells are stored.
+   * @param parent_directory the scratch directory the population file is created under.
+   * @throws IOException if the population file can not be created.
+   */
+  public SpillingCellPopulation(int new_haploid_number, File parent_directory) throws IOException
+  {
+    super(new_haploid_number);
+    this.scratch_directory = Files.createTempDirectory(parent_directory.toPath(), "population").toFile();
+    this.population_file = new File(scratch_directory, "cells.bin");
+    this.population_file_access = new RandomAccessFile(population_file, "rw");
+    this.population_channel = population_file_access.getChannel();
+    for(int window = 0; window < RESIDENT_WINDOWS; window++)
+    {
+      window_chunks[window] = -1;
+    }
+  }// Constructor
+
+  @Override
+  protected ByteBuffer chunk(int chunk_index)
+  {
+    for(int window = 0; window < RESIDENT_WINDOWS; window++)
+    {
+      if(window_chunks[window] == chunk_index)
+      {
+        window_last_used[window] = ++window_accesses;
+        return windows[window];
+      }
+    }
+    return mapWindow(chunk_index);
+  }// chunk
+
+  /**
+   * Maps a cohort of the population file into the least recently used window.
+   */
+  private ByteBuffer mapWindow(int chunk_index)
+  {
+    int window = 0;
+    for(int candidate = 1; candidate < RESIDENT_WINDOWS; candidate++)
+    {
+      if(window_last_used[candidate] < window_last_used[window])
+        window = candidate;
+    }
+    if(windows[window] != null)
+    {// Write the replaced cohort back and release its pages
+      unmapWindow(window);
+    }
+    try
+    {
+      MappedByteBuffer cohort = population_channel.map(FileChannel.MapMode.READ_WRITE, (long)chunk_index * CHUNK_SIZE, CHUNK_SIZE);
+      cohort.order(ByteOrder.nativeOrder());
+      windows[window] = cohort;
+      window_chunks[window] = chunk_index;
+      window_last_used[window] = ++window_accesses;
+      return cohort;
+    }
+    catch(IOException e)
+    {
+      throw new UncheckedIOException("Error mapping cohort " + chunk_index + " of " + population_file, e);
+    }
+  }// mapWindow
+
+  /**
+   * Forces a window's cohort to the population file and unmaps it.
+   */
+  private void unmapWindow(int window)
+  {
+    MappedByteBuffer cohort = windows[window];
+    windows[window] = null;
+    window_chunks[window] = -1;
+    window_last_used[window] = 0;
+    cohort.force();
+    freeBuffer(cohort);
+  }// unmapWindow
+
+  /**
+   * Closes and deletes the population file, the population is empty afterwards.
+   */
+  @Override
+  public void close()
+  {
+    for(int window = 0; window < RESIDENT_WINDOWS; window++)
+    {
+      if(windows[window] != null)
+        unmapWindow(window);
+    }
+    size = 0;
+    try
+    {
+      population_channel.close();
+      population_file_access.close();
+    }
+    catch(IOException e)
+    {
+      System.out.println("Error closing population file " + population_file + " " + e.getMessage());
+    }
+    if(!population_file.delete() || !scratch_directory.delete())
+    {// Still mapped on some platforms if the JVM could not unmap the windows, remove when the JVM exits instead
+      population_file.deleteOnExit();
+      scratch_directory.deleteOnExit();
+    }
+  }// close
+}// SpillingCellPopulation
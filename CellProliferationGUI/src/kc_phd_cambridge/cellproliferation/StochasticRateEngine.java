@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Simulates asynchronous division at a constant rate per cell, with the
+ * Gillespie stochastic simulation algorithm while the population is small and
+ * tau-leaping once it is large.
+ *
+ * Only SimulationData.getPercentageOfDividingCells() of the founders can
+ * divide, as in the early Mitosis model, and the daughters of a dividing cell
+ * can both divide again; each dividing cell divides at
+ * SimulationData.getCellDoublingRate() divisions per unit of time.
+ *
+ * While fewer than SSA_POPULATION_LIMIT cells can divide, every division is
+ * simulated exactly: the time to the next division is drawn from the
+ * exponential distribution of the total division rate and the dividing cell is
+ * drawn uniformly. Above the limit the run advances in leaps of LEAP_SIZE
+ * divisions per dividing cell; the number of divisions in a leap is drawn from
+ * the Poisson distribution of its expected number and that many distinct cells
+ * are picked by a partial shuffle, so a leap costs O(divisions) rather than a
+ * coin flip per cell.
+ *
+ * Records are written for both daughters of every division, as in the cell
+ * engine.
+ *
+ * @see kc_phd_cambridge.cellproliferation.SimulationEngine
+ * @author Kyata Chibalabala
+ */
+public class StochasticRateEngine implements SimulationEngine
+{
+  // Class variables
+  public static final int SSA_POPULATION_LIMIT = 1 << 10; // The most dividing cells simulated one division at a time
+  public static final double LEAP_SIZE = 0.01; // The expected number of divisions per dividing cell in one leap
+  private static final double NORMAL_APPROXIMATION_MEAN = 64; // The Poisson mean above which its normal approximation is used
+
+  // Instance variables
+  private final int haploid_number, initial_population_size, simulation_duration;
+  private final double cell_doubling_rate, percentage_of_dividing_cells;
+  private final DivisionKernel division_kernel;
+  private final SplittableRandom simulation_random;
+  private final CellIdAllocator.IdBlock cell_ids;
+
+  /**
+   * Constructor.
+   *
+   * @param input_parameters the parameters of the run, including the doubling rate and the percentage of dividing cells.
+   * @param karyotype the chromosome sizes of the simulated organism.
+   * @param genome_states the genome states of the run.
+   * @param random_streams the random number streams of the run, whose population stream decides division times, dividing cells and chromosome segregation.
+   * @param cell_id_allocator the allocator the cell IDs are taken from.
+   */
+  public StochasticRateEngine(SimulationData input_parameters, KaryotypeTable karyotype, GenomeStateTable genome_states,
+      RandomStreams random_streams, CellIdAllocator cell_id_allocator)
+  {
+    this.haploid_number = karyotype.getHaploidNumber();
+    this.initial_population_size = input_parameters.getInitialPopulationSize();
+    this.simulation_duration = input_parameters.getSimulationDuration();
+    this.cell_doubling_rate = input_parameters.getCellDoublingRate();
+    this.percentage_of_dividing_cells = input_parameters.getPercentageOfDividingCells();
+    this.division_kernel = new DivisionKernel(karyotype, genome_states);
+    this.simulation_random = random_streams.populationStream();
+    this.cell_ids = cell_id_allocator.newIdBlock();
+  }// Constructor
+
+  @Override
+  public void simulate(RecordWriter output_writer, int[] newest_generation) throws IOException
+  {
+    CellPopulation cell_population = new HeapCellPopulation(haploid_number, initial_population_size);
+    int[] dividing_cells = new int[Math.max(initial_population_size, 16)]; // The population indices of the cells that can divide
+    int number_of_dividing_cells = (int)Math.round(percentage_of_dividing_cells / 100.0 * initial_population_size);
+
+    for(int lineage = 0; lineage < initial_population_size; lineage++)
+    {// the first founders can divide, the rest are quiescent
+      int founder = cell_population.append(cell_ids.nextId(), lineage, 0);
+      if(founder < number_of_dividing_cells)
+        dividing_cells[founder] = founder;
+      newest_generation[lineage] = 0;
+    }
+    if(cell_doubling_rate <= 0.0)
+      return;
+
+    double current_time = 0.0;
+    while(number_of_dividing_cells > 0)
+    {
+      int divisions;
+      if(number_of_dividing_cells < SSA_POPULATION_LIMIT)
+      {// exact step, one division after an exponentially distributed wait
+        current_time += -Math.log(1.0 - simulation_random.nextDouble()) / (cell_doubling_rate * number_of_dividing_cells);
+        if(current_time > simulation_duration)
+          break;
+        divisions = 1;
+      }
+      else
+      {// leap, every dividing cell divides at most once
+        double leap_time = Math.min(LEAP_SIZE / cell_doubling_rate, simulation_duration - current_time);
+        if(leap_time <= 0.0)
+          break;
+        current_time += leap_time;
+        divisions = (int)Math.min(poisson(cell_doubling_rate * number_of_dividing_cells * leap_time), number_of_dividing_cells);
+      }
+
+      if(dividing_cells.length < number_of_dividing_cells + divisions)
+        dividing_cells = Arrays.copyOf(dividing_cells, 2 * (number_of_dividing_cells + divisions));
+      final int dividing_cells_at_beginning = number_of_dividing_cells;
+      for(int division = 0; division < divisions; division++)
+      {// pick distinct dividing cells by a partial shuffle of the front of the list
+        int pick = division + simulation_random.nextInt(dividing_cells_at_beginning - division);
+        int mother_cell_index = dividing_cells[pick];
+        dividing_cells[pick] = dividing_cells[division];
+        dividing_cells[division] = mother_cell_index;
+
+        int lineage = cell_population.getLineageId(mother_cell_index);
+        int next_generation = cell_population.getGeneration(mother_cell_index) + 1;
+        cell_population.setGeneration(mother_cell_index, next_generation);
+        int index_of_daughter_cell_two = cell_population.append(cell_ids.nextId(), lineage, next_generation);
+        division_kernel.performSPhase(cell_population, mother_cell_index, index_of_daughter_cell_two, simulation_random);
+        dividing_cells[number_of_dividing_cells++] = index_of_daughter_cell_two;
+        newest_generation[lineage] = Math.max(newest_generation[lineage], next_generation);
+
+        output_writer.writeRecord(cell_population.getCellId(mother_cell_index), next_generation, lineage, cell_population.getGenomeState(mother_cell_index));
+        output_writer.writeRecord(cell_population.getCellId(index_of_daughter_cell_two), next_generation, lineage, cell_population.getGenomeState(index_of_daughter_cell_two));
+      }
+    }
+  }// simulate
+
+  /**
+   * Draws the number of events of a Poisson process with the given mean, by
+   * inversion for small means and from the rounded normal approximation for
+   * large ones.
+   */
+  private long poisson(double mean)
+  {
+    if(mean > NORMAL_APPROXIMATION_MEAN)
+    {
+      double u1 = 1.0 - simulation_random.nextDouble(), u2 = simulation_random.nextDouble();
+      double normal = Math.sqrt(-2.0 * Math.log(u1)) * Math.cos(2.0 * Math.PI * u2);
+      return Math.max(0L, Math.round(mean + Math.sqrt(mean) * normal));
+    }
+    double probability = Math.exp(-mean), cumulative = probability, u = simulation_random.nextDouble();
+    long events = 0;
+    while(u > cumulative && probability > 0.0)
+    {
+      events++;
+      probability *= mean / events;
+      cumulative += probability;
+    }
+    return events;
+  }// poisson
+}// StochasticRateEngine
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/**
+ * Simulates each lineage exactly by following only the cells that still carry
+ * an unlabelled template strand.
+ *
+ * performSPhase labels every newly synthesised strand, so the only unlabelled
+ * DNA of a lineage is the 4 x haploid number template strands of its founder,
+ * and each of them sits in exactly one cell. At most 4 x haploid number cells
+ * of a lineage are therefore not fully labelled. These carrier cells are
+ * divided one by one with the ordinary DivisionKernel; every other cell is
+ * fully labelled, has two fully labelled daughters, and is kept only as a
+ * count per generation. A daughter of a carrier that turns out fully labelled
+ * joins the counts. The work per timestep is linear in the haploid number
+ * rather than exponential in the number of generations.
+ *
+ * Carrier daughters are written as ordinary cell records. The fully labelled
+ * cells of each lineage and generation are written as one record whose weight
+ * is their number, with cell ID -1.
+ *
+ * @see kc_phd_cambridge.cellproliferation.SimulationEngine
+ * @author Kyata Chibalabala
+ */
+public class TemplateStrandEngine implements SimulationEngine
+{
+  // Instance variables
+  private final int haploid_number, initial_population_size, simulation_duration, time_interval;
+  private final GenomeStateTable genome_states;
+  private final DivisionKernel division_kernel;
+  private final RandomStreams random_streams;
+  private final CellIdAllocator.IdBlock cell_ids;
+
+  /**
+   * Constructor.
+   *
+   * @param input_parameters the parameters of the run.
+   * @param karyotype the chromosome sizes of the simulated organism.
+   * @param new_genome_states the genome states of the run.
+   * @param random_streams the random number streams of the run, each lineage uses its own stream.
+   * @param cell_id_allocator the allocator the IDs of carrier cells are taken from.
+   */
+  public TemplateStrandEngine(SimulationData input_parameters, KaryotypeTable karyotype, GenomeStateTable new_genome_states,
+      RandomStreams random_streams, CellIdAllocator cell_id_allocator)
+  {
+    this.haploid_number = karyotype.getHaploidNumber();
+    this.initial_population_size = input_parameters.getInitialPopulationSize();
+    this.simulation_duration = input_parameters.getSimulationDuration();
+    this.time_interval = input_parameters.getTimeInterval();
+    this.genome_states = new_genome_states;
+    this.division_kernel = new DivisionKernel(karyotype, new_genome_states);
+    this.random_streams = random_streams;
+    this.cell_ids = cell_id_allocator.newIdBlock();
+  }// Constructor
+
+  @Override
+  public void simulate(RecordWriter output_writer, int[] newest_generation) throws IOException
+  {
+    final int number_of_timesteps = (simulation_duration + time_interval - 1) / time_interval;
+    final int fully_labelled_genome = genome_states.getFullyLabelledGenome();
+
+    for(int lineage = 0; lineage < initial_population_size; lineage++)
+    {// for each lineage, lineages never interact
+      SplittableRandom lineage_random = random_streams.lineageStream(lineage);
+      CellPopulation carriers = new HeapCellPopulation(haploid_number, 8 * haploid_number);
+      carriers.append(cell_ids.nextId(), lineage, 0);
+      long[] fully_labelled_cells = new long[number_of_timesteps + 2]; // Indexed by generation
+      newest_generation[lineage] = 0;
+
+      for(int timestep = 0; timestep < number_of_timesteps; timestep++)
+      {// at each time interval every cell divides
+        for(int generation = newest_generation[lineage]; generation >= 0; generation--)
+        {// Fully labelled cells have two fully labelled daughters
+          fully_labelled_cells[generation + 1] += 2 * fully_labelled_cells[generation];
+          fully_labelled_cells[generation] = 0;
+        }
+
+        final int carriers_at_beginning = carriers.size();
+        for(int mother_cell_index = 0; mother_cell_index < carriers_at_beginning; mother_cell_index++)
+        {
+          int next_generation = carriers.getGeneration(mother_cell_index) + 1;
+          carriers.setGeneration(mother_cell_index, next_generation);
+          int index_of_daughter_cell_two = carriers.append(cell_ids.nextId(), lineage, next_generation);
+          division_kernel.performSPhase(carriers, mother_cell_index, index_of_daughter_cell_two, lineage_random);
+          newest_generation[lineage] = Math.max(newest_generation[lineage], next_generation);
+        }
+        carriers = keepCarriers(carriers, fully_labelled_cells, output_writer);
+
+        for(int generation = 0; generation <= newest_generation[lineage]; generation++)
+        {
+          if(fully_labelled_cells[generation] > 0)
+            output_writer.writeRecord(HistogramEngine.NO_CELL_ID, generation, lineage, fully_labelled_genome, fully_labelled_cells[generation]);
+        }
+      }// at each time interval
+    }// for each lineage
+  }// simulate
+
+  /**
+   * Writes the records of the carriers, moving the cells that are now fully
+   * labelled into the counts.
+   *
+   * @return the cells that still carry a template strand.
+   */
+  private CellPopulation keepCarriers(CellPopulation cells, long[] fully_labelled_cells, RecordWriter output_writer) throws IOException
+  {
+    CellPopulation carriers = new HeapCellPopulation(haploid_number, 8 * haploid_number);
+    for(int cell = 0; cell < cells.size(); cell++)
+    {
+      if(cells.getGenomeState(cell) == genome_states.getFullyLabelledGenome())
+      {
+        fully_labelled_cells[cells.getGeneration(cell)]++;
+        continue;
+      }
+      output_writer.writeRecord(cells.getCellId(cell), cells.getGeneration(cell), cells.getLineageId(cell), cells.getGenomeState(cell));
+      int carrier = carriers.append(cells.getCellId(cell), cells.getLineageId(cell), cells.getGeneration(cell));
+      carriers.setGenomeState(carrier, cells.getGenomeState(cell));
+    }
+    return carriers;
+  }// keepCarriers
+}// TemplateStrandEngine
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Kyata Chibalabala.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kc_phd_cambridge.cellproliferation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the division path allocates nothing on the heap once the genome
+ * states in circulation are interned: replicating and segregating a genome 
+ * with DivisionKernel.performSPhase and writing both daughters' records with
+ * RecordWriter.writeRecord.
+ *
+ * The allocated bytes of the test thread are read from the JVM's ThreadMXBean
+ * before and after a run of divisions that replays a warmed-up run with the
+ * same seed, so every daughter genome state is already in the table.
+ *
+ * @see kc_phd_cambridge.cellproliferation.DivisionKernel
+ * @see kc_phd_cambridge.cellproliferation.RecordWriter
+ * @author Kyata Chibalabala
+ */
+public class DivisionKernelAllocationTest
+{
+  // Class variables
+  private static final String ORGANISM = "Test allocatus";
+  private static final int MALE = 2, HAPLOID_NUMBER = 23;
+  private static final int GENERATIONS = 10; // The generations grown to give a spread of mother genome states
+  private static final int MEASURED_DIVISIONS = 200000, WARM_UP_RUNS = 20;
+  private static final long ALLOWED_BYTES = 16 * 1024; // Slack for the bean's own bookkeeping, far below one byte per division
+  private static final long SEED = 42;
+
+  /**
+   * Imports a genome data file holding a 23 pair organism with chromosome sizes like those of a mammal.
+   */
+  @BeforeClass
+  public static void importGenomeData() throws IOException
+  {
+    File genome_data_file = File.createTempFile("genome_data", ".txt");
+    genome_data_file.deleteOnExit();
+    try(PrintWriter genome_data_writer = new PrintWriter(genome_data_file, "US-ASCII"))
+    {
+      genome_data_writer.println("> " + ORGANISM + " | " + HAPLOID_NUMBER);
+      for(int chromosome = 1; chromosome < HAPLOID_NUMBER; chromosome++)
+      {
+        genome_data_writer.println("chr" + chromosome + " " + (250000000L - 9000000L * chromosome));
+      }
+      genome_data_writer.println("chrX 156040895");
+      genome_data_writer.println("chrY 57264655");
+    }
+    new GenomeData(genome_data_file);
+  }// importGenomeData
+
+  @Test
+  public void divisionPathDoesNotAllocate() throws IOException
+  {
+    com.sun.management.ThreadMXBean thread_bean = threadBean();
+    assumeTrue(thread_bean != null && thread_bean.isThreadAllocatedMemorySupported());
+    thread_bean.setThreadAllocatedMemoryEnabled(true);
+
+    KaryotypeTable karyotype = KaryotypeTable.getKaryotypeTable(ORGANISM, MALE);
+    GenomeStateTable genome_states = new GenomeStateTable(karyotype);
+    DivisionKernel division_kernel = new DivisionKernel(karyotype, genome_states);
+    HeapCellPopulation cell_population = new HeapCellPopulation(HAPLOID_NUMBER, 1 << GENERATIONS);
+    RecordWriter output_writer = new RecordWriter(new DiscardingOutputStream(), genome_states);
+
+    // Grow a founder's descendants to collect mother cells with many different genome states
+    cell_population.append(0, 0, 0);
+    SplittableRandom growth_random = new SplittableRandom(SEED);
+    for(int generation = 0; generation < GENERATIONS; generation++)
+    {
+      int population_size_at_beginning = cell_population.size();
+      for(int mother_cell_index = 0; mother_cell_index < population_size_at_beginning; mother_cell_index++)
+      {
+        int index_of_daughter_cell_two = cell_population.append(cell_population.size(), 0, generation + 1);
+        division_kernel.performSPhase(cell_population, mother_cell_index, index_of_daughter_cell_two, growth_random);
+      }
+    }
+    int[] mother_genome_states = new int[cell_population.size()];
+    for(int cell = 0; cell < mother_genome_states.length; cell++)
+    {
+      mother_genome_states[cell] = cell_population.getGenomeState(cell);
+    }
+
+    // Runs with the same seed intern every daughter state and compile the path
+    for(int run = 0; run < WARM_UP_RUNS; run++)
+    {
+      divide(division_kernel, cell_population, mother_genome_states, new SplittableRandom(SEED), output_writer);
+    }
+
+    SplittableRandom measured_random = new SplittableRandom(SEED);
+    long thread_id = Thread.currentThread().getId();
+    long bytes_before = thread_bean.getThreadAllocatedBytes(thread_id);
+    divide(division_kernel, cell_population, mother_genome_states, measured_random, output_writer);
+    long bytes_allocated = thread_bean.getThreadAllocatedBytes(thread_id) - bytes_before;
+
+    assertTrue(bytes_allocated + " bytes allocated over " + MEASURED_DIVISIONS + " divisions", bytes_allocated < ALLOWED_BYTES);
+  }// divisionPathDoesNotAllocate
+
+  /**
+   * Divides mother cells carrying the collected genome states, one after another, in cells 0 and 1 of the population.
+   */
+  private static void divide(DivisionKernel division_kernel, CellPopulation cell_population, int[] mother_genome_states,
+      SplittableRandom random, RecordWriter output_writer) throws IOException
+  {
+    for(int division = 0; division < MEASURED_DIVISIONS; division++)
+    {
+      cell_population.setGenomeState(0, mother_genome_states[division % mother_genome_states.length]);
+      division_kernel.performSPhase(cell_population, 0, 1, random);
+      output_writer.writeRecord(division, GENERATIONS + 1, 0, cell_population.getGenomeState(0));
+      output_writer.writeRecord(division, GENERATIONS + 1, 0, cell_population.getGenomeState(1));
+    }
+  }// divide
+
+  /**
+   * Provides the JVM's thread bean with allocation counters, or null if it has none.
+   */
+  private static com.sun.management.ThreadMXBean threadBean()
+  {
+    java.lang.management.ThreadMXBean thread_bean = ManagementFactory.getThreadMXBean();
+    return thread_bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)thread_bean : null;
+  }// threadBean
+
+  /**
+   * Discards the records written, so the test measures formatting and not file output.
+   */
+  private static final class DiscardingOutputStream extends OutputStream
+  {
+    @Override
+    public void write(int b)
+    {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+    }
+  }// DiscardingOutputStream
+}// DivisionKernelAllocationTest